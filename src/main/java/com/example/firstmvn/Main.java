@@ -4,11 +4,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.AutoConfigurationExcludeFilter;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
+import org.springframework.boot.context.TypeExcludeFilter;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
 
 
-@SpringBootApplication()
+// The reactive stack is its own app (ReactiveMain), keep it out of this one
+@SpringBootApplication(exclude = {R2dbcAutoConfiguration.class})
+@ComponentScan(excludeFilters = {
+	@ComponentScan.Filter(type = FilterType.CUSTOM, classes = TypeExcludeFilter.class),
+	@ComponentScan.Filter(type = FilterType.CUSTOM, classes = AutoConfigurationExcludeFilter.class),
+	@ComponentScan.Filter(type = FilterType.REGEX, pattern = "com\\.example\\.firstmvn\\.reactive\\..*")
+})
 public class Main {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(Main.class);
@@ -25,5 +36,9 @@ public class Main {
 		// Print out the host:port
 		String port = cac.getEnvironment().getProperty("server.port");
 		LOGGER.info("Spring Boot server started on localhost:" + port);
+		// AppCDS training run ("mvn -P cds package"), the classes are archived when the JVM exits
+		if (cac.getEnvironment().getProperty("app.cds.training", Boolean.class, false)) {
+			System.exit(SpringApplication.exit(cac));
+		}
 	}
 }
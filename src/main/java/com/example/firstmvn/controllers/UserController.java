@@ -6,12 +6,27 @@
 
 package com.example.firstmvn.controllers;
 
+import com.example.firstmvn.dtos.UserBatchOp;
+import com.example.firstmvn.dtos.UserBatchResult;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
 import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
 import com.example.firstmvn.services.UserService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -19,7 +34,9 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -29,45 +46,106 @@ import org.springframework.web.bind.annotation.RestController;
 public class UserController {
 
     private final UserService userService;
+    private final ObjectWriter ndjsonWriter;
   
     public final static String SUCCESSFUL_POST_MSG = "Thanks For Posting!!";
     public final static String SUCCESSFUL_UPDATE_MSG = "Thanks for Updating!!";
     public final static String SUCCESSFUL_DELETE_MSG = "Thanks for Deleting!!";
 
+    private static final String ANY_ETAG = "*";
+    private static final String BAD_IF_MATCH_MSG = "If-Match must be \"*\" or one ETag from a GET of " +
+        "this user, got: ";
+
 
     /**
      * Constructor()
      * 
      * @param userService
+     * @param objectMapper
      */
-    public UserController(UserService userService) {
+    public UserController(UserService userService, ObjectMapper objectMapper) {
         this.userService = userService;
+        // Let the servlet buffer decide when to flush instead of flushing every record
+        this.ndjsonWriter = objectMapper.writerFor(UserDto.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
     }
 
 
     /**
-     * Fetch all users.
+     * Fetch a page of users. Pass the "next" value of the response as "after" to get the
+     * following page. The ETag changes when a user on the page is added, updated or deleted, a
+     * GET with a matching "If-None-Match" gets a 304 without the body being serialized.
      * 
+     * @param limit
+     * @param after
      * @return
      */
     @GetMapping("")
-    public ResponseEntity<Object> getAll() {
-        List<User> users = userService.getAll();
-        // pick up here wrap in object
-        return new ResponseEntity<Object>(users, HttpStatus.OK);
+    public ResponseEntity<Object> getAll(
+        @RequestParam(defaultValue = "${users.page.default-size:20}") int limit,
+        @RequestParam(required = false) Long after
+    ) {
+        UserPage page = userService.getAll(limit, after);
+        return ResponseEntity.ok().eTag(getEtag(page)).body(page);
+    }
+
+
+    /**
+     * Search users by name or email prefix, or by substring for 3 characters or more, ignoring
+     * case. Most relevant first: exact matches, then prefixes, then substrings. Pass the "next"
+     * value of the response as "offset" to get the following page.
+     * 
+     * @param q
+     * @param limit
+     * @param offset
+     * @return
+     */
+    @GetMapping("/search")
+    public ResponseEntity<Object> search(
+        @RequestParam String q,
+        @RequestParam(defaultValue = "${users.page.default-size:20}") int limit,
+        @RequestParam(defaultValue = "0") int offset
+    ) {
+        UserPage page = userService.search(q, limit, offset);
+        return ResponseEntity.ok().eTag(getEtag(page)).body(page);
+    }
+
+
+    /**
+     * Export all users as newline-delimited JSON. Each user is written straight to the response
+     * as it's read from the database so the whole table is never held in memory.
+     * 
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping("/export")
+    public void export(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        try (JsonGenerator gen = ndjsonWriter.createGenerator(response.getOutputStream())) {
+            gen.setRootValueSeparator(null);
+            userService.forEach(user -> {
+                try {
+                    ndjsonWriter.writeValue(gen, user);
+                    gen.writeRaw('\n');
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
     }
 
 
     /**
-     * Find one user by id.
+     * Find one user by id. The ETag is the user's version, a GET with a matching
+     * "If-None-Match" gets a 304 without the body being serialized.
      * 
      * @param id
      * @return
      */
     @GetMapping("{id}")
     public ResponseEntity<Object> getOne(@PathVariable Long id) {
-        User user = userService.getOne(id);
-        return new ResponseEntity<Object>(user, HttpStatus.OK);
+        UserDto user = userService.getOne(id);
+        return ResponseEntity.ok().eTag(getEtag(user)).body(user);
     }
 
 
@@ -86,15 +164,20 @@ public class UserController {
 
 
     /**
-     * Update a user.
+     * Update a user. With an "If-Match" ETag from a GET the update only happens if nobody else
+     * updated the user since, otherwise it's a 412.
      * 
      * @param user
+     * @param ifMatch
      * @return
      */
     @PutMapping("")
     @ResponseBody
-    public ResponseEntity<String> updateOne(@RequestBody User user) {
-        userService.updateOne(user);
+    public ResponseEntity<String> updateOne(
+        @RequestBody User user,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch
+    ) {
+        userService.updateOne(user, getIfMatchVersion(ifMatch));
         return new ResponseEntity<String>(SUCCESSFUL_UPDATE_MSG, HttpStatus.OK);
     }
 
@@ -111,4 +194,91 @@ public class UserController {
         userService.deleteOne(id);
         return new ResponseEntity<String>(SUCCESSFUL_DELETE_MSG, HttpStatus.OK);
     }
-}
+
+
+    /**
+     * Run a batch of creates, updates and deletes. Returns one result per operation. When
+     * "atomic" is true nothing is written unless every operation succeeds.
+     * 
+     * @param ops
+     * @param atomic
+     * @return
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<Object> batch(
+        @RequestBody List<UserBatchOp> ops,
+        @RequestParam(defaultValue = "true") boolean atomic
+    ) {
+        List<UserBatchResult> results = userService.batch(ops, atomic);
+        return new ResponseEntity<Object>(results, HttpStatus.OK);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Get the strong ETag of one user.
+     * 
+     * @param user
+     * @return
+     */
+    private static String getEtag(UserDto user) {
+        return "\"" + user.getVersion() + "\"";
+    }
+
+
+    /**
+     * Get the strong ETag of a page, a hash of the ids and versions on it. Any write to one of
+     * the users bumps its version, so this changes whenever the JSON would.
+     * 
+     * @param page
+     * @return
+     */
+    private static String getEtag(UserPage page) {
+        long hash = (page.getNext() == null) ? 0 : page.getNext();
+        for (UserDto user : page.getUsers()) {
+            hash = mix(hash, user.getId());
+            hash = mix(hash, user.getVersion());
+        }
+        return "\"p" + Long.toHexString(hash) + "\"";
+    }
+
+
+    /**
+     * Fold one value into the hash (the multiply and shift from SplitMix64).
+     * 
+     * @param hash
+     * @param value
+     * @return
+     */
+    private static long mix(long hash, long value) {
+        long x = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return x ^ (x >>> 32);
+    }
+
+
+    /**
+     * Get the version from an "If-Match" header. Null if there's no header or it's "*". ETags
+     * are compared strongly, so a weak one or anything else that isn't one of our ETags can
+     * never match.
+     * 
+     * @param ifMatch
+     * @return
+     */
+    public static Long getIfMatchVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals(ANY_ETAG)) {
+            return null;
+        }
+        String etag = ifMatch.trim();
+        if (etag.length() > 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            try {
+                return Long.valueOf(etag.substring(1, etag.length() - 1));
+            } catch (NumberFormatException ex) {
+                // Fall through
+            }
+        }
+        throw new PreconditionFailedException(BAD_IF_MATCH_MSG + ifMatch);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,541 @@
+/**
+ * Handle batches of user creates, updates and deletes. Uniqueness is checked for the whole batch
+ * with one query and the writes are sent as JDBC batches.
+ */
+
+package com.example.firstmvn.daos;
+
+import com.example.firstmvn.dtos.UserBatchOp;
+import com.example.firstmvn.dtos.UserBatchResult;
+import com.example.firstmvn.dtos.UserBatchResult.Status;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.BadRequestException;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+@Repository
+public class UserBatchDao {
+
+    private static final String LOOKUP_SQL =
+        "SELECT id, email FROM main.users WHERE id = ANY(?) OR email = ANY(?)";
+    private static final String INSERT_SQL =
+        "INSERT INTO main.users (email, name, pwdHash, created) VALUES (?, ?, ?, CURRENT_DATE)";
+    private static final String UPDATE_SQL =
+        "UPDATE main.users SET email = ?, name = ?, pwdHash = ?, version = version + 1 WHERE id = ?";
+    private static final String DELETE_SQL = "DELETE FROM main.users WHERE id = ?";
+    private static final String TOO_MANY_OPS_MSG = "A batch can have at most %d operations.";
+    private static final String BAD_OP_MSG = "Batch operation at index %d is missing its %s.";
+    private static final String DELETE_USER_MSG = "Batch operation at index %d is a delete, it takes an id " +
+        "and no user.";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate txTemplate;
+    private final UserEmailFilter emailFilter;
+    private final int batchSize;
+    private final int maxOps;
+
+
+    /**
+     * Constructor()
+     *
+     * @param jdbcTemplate
+     * @param transactionManager
+     * @param emailFilter
+     * @param batchSize
+     * @param maxOps
+     */
+    public UserBatchDao(
+        JdbcTemplate jdbcTemplate,
+        PlatformTransactionManager transactionManager,
+        UserEmailFilter emailFilter,
+        @Value("${users.batch.size:500}") int batchSize,
+        @Value("${users.batch.max-ops:10000}") int maxOps
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.txTemplate = new TransactionTemplate(transactionManager);
+        this.emailFilter = emailFilter;
+        this.batchSize = batchSize;
+        this.maxOps = maxOps;
+    }
+
+
+    /**
+     * Run a batch of operations and return one result per operation, in order. When atomic, all
+     * operations run in one transaction and nothing is written unless every operation succeeds.
+     * Otherwise each operation succeeds or fails on its own.
+     *
+     * @param ops
+     * @param atomic
+     * @return
+     */
+    public List<UserBatchResult> run(List<UserBatchOp> ops, boolean atomic) {
+        checkOps(ops);
+        if (atomic) {
+            return runAtomic(ops);
+        }
+        return runPerItem(ops);
+    }
+
+
+    /**
+     * Run every operation in one transaction. If the email filter ruled out an email that was
+     * taken (e.g. by another node) the batch is run again checking every email. If the table
+     * rejects anything else, the operations are run one at a time to find which.
+     *
+     * @param ops
+     * @return
+     */
+    private List<UserBatchResult> runAtomic(List<UserBatchOp> ops) {
+        try {
+            return txTemplate.execute(status -> runAtomic(ops, true, status));
+        } catch (DataIntegrityViolationException ex) {
+            if (!UserDao.isEmailTaken(ex)) {
+                return txTemplate.execute(status -> findRejected(ops, status));
+            }
+        }
+        try {
+            return txTemplate.execute(status -> runAtomic(ops, false, status));
+        } catch (DataIntegrityViolationException ex) {
+            return txTemplate.execute(status -> findRejected(ops, status));
+        }
+    }
+
+
+    /**
+     * Run every operation in the current transaction, rolling back if any of them fail.
+     *
+     * @param ops
+     * @param useFilter
+     * @param status
+     * @return
+     */
+    private List<UserBatchResult> runAtomic(List<UserBatchOp> ops, boolean useFilter, TransactionStatus status) {
+        UserBatchResult[] results = validate(ops, useFilter);
+        if (hasFailures(results) && useFilter) {
+            // Nothing will be written, check every email so all the conflicts get reported
+            results = validate(ops, false);
+        }
+        List<List<Integer>> runs = getRuns(ops, results);
+        if (hasFailures(results)) {
+            return skipRest(results);
+        }
+        for (List<Integer> run : runs) {
+            execute(ops, run, results);
+        }
+        // A row can disappear between the lookup and the write
+        if (hasFailures(results)) {
+            status.setRollbackOnly();
+            return skipRest(results);
+        }
+        return Arrays.asList(results);
+    }
+
+
+    /**
+     * Run the operations one at a time in the current transaction until one fails, then roll
+     * back. Finds the operation the table rejected when a whole batch was.
+     *
+     * @param ops
+     * @param status
+     * @return
+     */
+    private List<UserBatchResult> findRejected(List<UserBatchOp> ops, TransactionStatus status) {
+        UserBatchResult[] results = validate(ops, false);
+        if (hasFailures(results)) {
+            return skipRest(results);
+        }
+        for (int i = 0; i < ops.size() && !hasFailures(results); i++) {
+            try {
+                execute(ops, List.of(i), results);
+            } catch (DataIntegrityViolationException ex) {
+                results[i] = getRejected(ops.get(i), ex);
+            }
+        }
+        if (hasFailures(results)) {
+            status.setRollbackOnly();
+            return skipRest(results);
+        }
+        return Arrays.asList(results);
+    }
+
+
+    /**
+     * Run each operation on its own. Consecutive operations of the same type still share a JDBC
+     * batch and a transaction. If the database rejects a batch (e.g. another request took an
+     * email after the lookup, or a name is too long) it's retried one operation at a time so
+     * only the culprits fail: a conflict for a taken email, a bad request for anything else.
+     *
+     * @param ops
+     * @return
+     */
+    private List<UserBatchResult> runPerItem(List<UserBatchOp> ops) {
+        UserBatchResult[] results = validate(ops, true);
+        for (List<Integer> run : getRuns(ops, results)) {
+            try {
+                txTemplate.executeWithoutResult(status -> execute(ops, run, results));
+            } catch (DataIntegrityViolationException ex) {
+                for (Integer i : run) {
+                    try {
+                        txTemplate.executeWithoutResult(status -> execute(ops, List.of(i), results));
+                    } catch (DataIntegrityViolationException itemEx) {
+                        results[i] = getRejected(ops.get(i), itemEx);
+                    }
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Validation
+     ****************************************************************************************/
+
+    /**
+     * Make sure the batch isn't too big and every operation has what it needs.
+     *
+     * @param ops
+     */
+    private void checkOps(List<UserBatchOp> ops) {
+        if (ops.size() > maxOps) {
+            throw new BadRequestException(String.format(TOO_MANY_OPS_MSG, maxOps));
+        }
+        for (int i = 0; i < ops.size(); i++) {
+            UserBatchOp op = ops.get(i);
+            if (op == null || op.getOp() == null) {
+                throw new BadRequestException(String.format(BAD_OP_MSG, i, "op"));
+            } else if (op.getOp() == UserBatchOp.Type.DELETE && op.getId() == null) {
+                throw new BadRequestException(String.format(BAD_OP_MSG, i, "id"));
+            } else if (op.getOp() == UserBatchOp.Type.DELETE && op.getUser() != null) {
+                // Otherwise it's ambiguous which id is deleted
+                throw new BadRequestException(String.format(DELETE_USER_MSG, i));
+            } else if (op.getOp() != UserBatchOp.Type.DELETE && op.getUser() == null) {
+                throw new BadRequestException(String.format(BAD_OP_MSG, i, "user"));
+            }
+        }
+    }
+
+
+    /**
+     * Look up every id and email in the batch with one query, then walk through the operations
+     * in order to find the ones that will fail. Returns an array with a result for each failed
+     * operation and null for the ones that can go ahead.
+     *
+     * @param ops
+     * @param useFilter
+     * @return
+     */
+    private UserBatchResult[] validate(List<UserBatchOp> ops, boolean useFilter) {
+        Map<Long, String> emailById = new HashMap<>();
+        Map<String, Long> idByEmail = new HashMap<>();
+        lookup(ops, useFilter, emailById, idByEmail);
+        // Track the state of the table as each operation is applied
+        UserBatchResult[] results = new UserBatchResult[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            UserBatchOp op = ops.get(i);
+            User user = op.getUser();
+            if (op.getOp() == UserBatchOp.Type.CREATE) {
+                if (emailById.containsKey(user.getId()) || idByEmail.containsKey(user.getEmail())) {
+                    results[i] = getConflict(op);
+                } else {
+                    // Id isn't known until the insert runs
+                    idByEmail.put(user.getEmail(), null);
+                }
+            } else if (op.getOp() == UserBatchOp.Type.UPDATE) {
+                Long id = user.getId();
+                if (!emailById.containsKey(id)) {
+                    results[i] = getNotFound(op);
+                } else if (idByEmail.containsKey(user.getEmail()) &&
+                        !id.equals(idByEmail.get(user.getEmail()))) {
+                    results[i] = getConflict(op);
+                } else {
+                    idByEmail.remove(emailById.get(id));
+                    idByEmail.put(user.getEmail(), id);
+                    emailById.put(id, user.getEmail());
+                }
+            } else {
+                if (!emailById.containsKey(op.getId())) {
+                    results[i] = getNotFound(op);
+                } else {
+                    idByEmail.remove(emailById.remove(op.getId()));
+                }
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Fetch the existing rows that match any id or email in the batch. Emails the filter says
+     * are free and ids that can't exist are left out, and if that leaves nothing (i.e. a batch
+     * of new signups) the query is skipped.
+     *
+     * @param ops
+     * @param useFilter
+     * @param emailById
+     * @param idByEmail
+     */
+    private void lookup(
+        List<UserBatchOp> ops,
+        boolean useFilter,
+        Map<Long, String> emailById,
+        Map<String, Long> idByEmail
+    ) {
+        List<Long> ids = new ArrayList<>();
+        List<String> emails = new ArrayList<>();
+        for (UserBatchOp op : ops) {
+            Long id = getId(op);
+            // Generated ids start at 1
+            if (id != null && id > 0) {
+                ids.add(id);
+            }
+            if (op.getOp() != UserBatchOp.Type.DELETE &&
+                    (!useFilter || emailFilter.mightContain(op.getUser().getEmail()))) {
+                emails.add(op.getUser().getEmail());
+            }
+        }
+        if (ids.isEmpty() && emails.isEmpty()) {
+            return;
+        }
+        RowCallbackHandler handler = rs -> {
+            emailById.put(rs.getLong(1), rs.getString(2));
+            idByEmail.put(rs.getString(2), rs.getLong(1));
+        };
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(LOOKUP_SQL);
+            ps.setArray(1, con.createArrayOf("bigint", ids.toArray()));
+            ps.setArray(2, con.createArrayOf("varchar", emails.toArray()));
+            return ps;
+        }, handler);
+        if (useFilter) {
+            for (String email : emails) {
+                if (!idByEmail.containsKey(email)) {
+                    emailFilter.recordFalsePositive();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Group the operations that passed validation into runs of the same type. Runs keep the
+     * order of the batch so e.g. a delete that frees an email happens before the create that
+     * takes it.
+     *
+     * @param ops
+     * @param results
+     * @return
+     */
+    private List<List<Integer>> getRuns(List<UserBatchOp> ops, UserBatchResult[] results) {
+        List<List<Integer>> runs = new ArrayList<>();
+        List<Integer> run = null;
+        UserBatchOp.Type runType = null;
+        for (int i = 0; i < ops.size(); i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            if (ops.get(i).getOp() != runType) {
+                run = new ArrayList<>();
+                runs.add(run);
+                runType = ops.get(i).getOp();
+            }
+            run.add(i);
+        }
+        return runs;
+    }
+
+
+    /*****************************************************************************************
+     *                                        Writes
+     ****************************************************************************************/
+
+    /**
+     * Execute a run of operations which are all the same type.
+     *
+     * @param ops
+     * @param run
+     * @param results
+     */
+    private void execute(List<UserBatchOp> ops, List<Integer> run, UserBatchResult[] results) {
+        UserBatchOp.Type type = ops.get(run.get(0)).getOp();
+        if (type == UserBatchOp.Type.CREATE) {
+            insert(ops, run, results);
+        } else if (type == UserBatchOp.Type.UPDATE) {
+            int[][] counts = jdbcTemplate.batchUpdate(UPDATE_SQL, run, batchSize, (ps, i) -> {
+                User user = ops.get(i).getUser();
+                ps.setString(1, user.getEmail());
+                ps.setString(2, user.getName());
+                ps.setString(3, user.getPwdHash());
+                ps.setLong(4, user.getId());
+            });
+            setResults(ops, run, counts, results);
+        } else {
+            int[][] counts = jdbcTemplate.batchUpdate(DELETE_SQL, run, batchSize, (ps, i) -> {
+                ps.setLong(1, ops.get(i).getId());
+            });
+            setResults(ops, run, counts, results);
+        }
+    }
+
+
+    /**
+     * Insert a run of users in batches and record the generated ids.
+     *
+     * @param ops
+     * @param run
+     * @param results
+     */
+    private void insert(List<UserBatchOp> ops, List<Integer> run, UserBatchResult[] results) {
+        PreparedStatementCreator creator = con -> con.prepareStatement(INSERT_SQL, new String[] {"id"});
+        jdbcTemplate.execute(creator, (PreparedStatement ps) -> {
+            for (int from = 0; from < run.size(); from += batchSize) {
+                List<Integer> chunk = run.subList(from, Math.min(from + batchSize, run.size()));
+                for (Integer i : chunk) {
+                    User user = ops.get(i).getUser();
+                    ps.setString(1, user.getEmail());
+                    ps.setString(2, user.getName());
+                    ps.setString(3, user.getPwdHash());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (Integer i : chunk) {
+                        keys.next();
+                        results[i] = UserBatchResult.ok(keys.getLong(1));
+                        emailFilter.put(ops.get(i).getUser().getEmail());
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * Turn update/delete row counts into results. A count of 0 means the row was removed after
+     * the lookup.
+     *
+     * @param ops
+     * @param run
+     * @param counts
+     * @param results
+     */
+    private void setResults(List<UserBatchOp> ops, List<Integer> run, int[][] counts, UserBatchResult[] results) {
+        int n = 0;
+        for (int[] chunk : counts) {
+            for (int count : chunk) {
+                int i = run.get(n++);
+                results[i] = (count == 0) ? getNotFound(ops.get(i)) : UserBatchResult.ok(getId(ops.get(i)));
+                if (count > 0 && ops.get(i).getOp() != UserBatchOp.Type.DELETE) {
+                    emailFilter.put(ops.get(i).getUser().getEmail());
+                }
+            }
+        }
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Check if any operation failed.
+     *
+     * @param results
+     * @return
+     */
+    private static boolean hasFailures(UserBatchResult[] results) {
+        for (UserBatchResult result : results) {
+            if (result != null && result.getStatus() != Status.OK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Mark every operation that didn't fail as skipped.
+     *
+     * @param results
+     * @return
+     */
+    private static List<UserBatchResult> skipRest(UserBatchResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null || results[i].getStatus() == Status.OK) {
+                results[i] = UserBatchResult.skipped();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+
+    /**
+     * Get the id an operation targets: the "id" for deletes, the user's otherwise.
+     *
+     * @param op
+     * @return
+     */
+    private static Long getId(UserBatchOp op) {
+        return (op.getOp() == UserBatchOp.Type.DELETE) ? op.getId() : op.getUser().getId();
+    }
+
+
+    /**
+     * Get the same conflict message UserDao gives for a single create or update.
+     *
+     * @param op
+     * @return
+     */
+    private static UserBatchResult getConflict(UserBatchOp op) {
+        User user = op.getUser();
+        if (op.getOp() == UserBatchOp.Type.CREATE) {
+            return UserBatchResult.conflict(UserDao.getAlreadyPersistsMsg(user.getId(), user.getEmail()));
+        }
+        return UserBatchResult.conflict(UserDao.getEmailAlreadyTakenMsg(user.getEmail()));
+    }
+
+
+    /**
+     * Get the result for an operation the table rejected: a conflict if its email is taken, a
+     * bad request otherwise (e.g. a value too long for its column), the same as UserDao.
+     *
+     * @param op
+     * @param ex
+     * @return
+     */
+    private static UserBatchResult getRejected(UserBatchOp op, DataIntegrityViolationException ex) {
+        if (UserDao.isEmailTaken(ex)) {
+            return getConflict(op);
+        }
+        return UserBatchResult.badRequest(UserDao.getInvalidUserMsg());
+    }
+
+
+    /**
+     * Get the same not-found message UserDao gives for a single update or delete.
+     *
+     * @param op
+     * @return
+     */
+    private static UserBatchResult getNotFound(UserBatchOp op) {
+        return UserBatchResult.notFound(UserDao.getIdNotFoundMsg(getId(op)));
+    }
+}
@@ -6,17 +6,36 @@
 
 package com.example.firstmvn.daos;
 
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
 import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.BadRequestException;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
 import com.example.firstmvn.repositories.UserRepo;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-import javax.persistence.EntityExistsException;
-import javax.persistence.EntityNotFoundException;
-import javax.transaction.Transactional;
+import javax.persistence.EntityManager;
 
+import org.hibernate.jpa.QueryHints;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 
 @Repository
@@ -28,27 +47,185 @@ public class UserDao {
     private static final String ADD_ERR_MSG = "User with that id and/or email already persists";
     private static final String EMAIL_TAKEN_MSG_1 = "The email \"";
     private static final String EMAIL_TAKEN_MSG_2 = "\" has already been taken by another user.";
+    private static final String INVALID_USER_MSG = "User has a field the database rejected, e.g. one " +
+        "that's too long.";
+    private static final String VERSION_MSG_1 = "User with id \"";
+    private static final String VERSION_MSG_2 = "\" is no longer at version ";
+    private static final String BAD_LIMIT_MSG = "Page limit must be greater than 0.";
+    private static final String BAD_OFFSET_MSG = "Offset can't be negative.";
+    private static final String BAD_QUERY_MSG = "Search text must be 1 to %d characters.";
+    // Unique violation SQLSTATE and the constraint on email, see V2__users.sql
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String EMAIL_CONSTRAINT = "uk_6dotkott2kjsp8vw4d0m25fb7";
+    private static final String STREAM_ALL_QUERY = UserRepo.DTO_SELECT + "ORDER BY u.id";
+    private static final int MAX_QUERY_LENGTH = 50;
+    // Trigrams can't match less, shorter searches only match prefixes
+    private static final int MIN_SUBSTRING_LENGTH = 3;
+    // Search matches in tiers: exact, prefix, then (3 characters or more) substring. Each tier
+    // ranks its matches with an index and keeps only its best "candidates" rows, so a common term
+    // doesn't rank the whole table: the lowest ids for exact matches, the first names and emails
+    // in the text_pattern_ops order for prefixes, the most similar for substrings. A user keeps
+    // its best tier. Pages are cut in the same order so they're stable. Substrings are ranked in
+    // full off the GIN indexes while there are at most "ranked" matches, past that the GiST
+    // index hands them over nearest first (KNN). See V5__users_search.sql and
+    // V6__users_search_rank.sql for the indexes.
+    private static final String SEARCH_COLUMNS = "id, email, name, created, version";
+    private static final String SEARCH_KEY = "(coalesce(lower(name), '') || ' ' || coalesce(lower(email), ''))";
+    private static final String SEARCH_CONTAINS = "(lower(name) LIKE :contains OR lower(email) LIKE :contains)";
+    private static final String SEARCH_EXACT =
+        "(SELECT " + SEARCH_COLUMNS + ", 0 AS tier, NULL AS key, 0 AS dist FROM main.users " +
+        "WHERE lower(name) = :q OR lower(email) = :q ORDER BY id LIMIT :candidates)";
+    private static final String SEARCH_PREFIX =
+        "(SELECT " + SEARCH_COLUMNS + ", 1 AS tier, lower(name) AS key, 0 AS dist FROM main.users " +
+        "WHERE lower(name) LIKE :prefix ORDER BY lower(name) USING ~<~ LIMIT :candidates) UNION ALL " +
+        "(SELECT " + SEARCH_COLUMNS + ", 1 AS tier, lower(email) AS key, 0 AS dist FROM main.users " +
+        "WHERE lower(email) LIKE :prefix ORDER BY lower(email) USING ~<~ LIMIT :candidates)";
+    private static final String SEARCH_MATCHES = "matches AS (SELECT " + SEARCH_COLUMNS + ", " +
+        SEARCH_KEY + " AS key FROM main.users WHERE " + SEARCH_CONTAINS + " ORDER BY id LIMIT :ranked + 1)";
+    private static final String SEARCH_SUBSTRING =
+        "(SELECT " + SEARCH_COLUMNS + ", 2 AS tier, NULL AS key, :q <<-> key AS dist FROM matches " +
+        "WHERE (SELECT count(*) FROM matches) <= :ranked ORDER BY dist, id LIMIT :candidates) UNION ALL " +
+        "(SELECT " + SEARCH_COLUMNS + ", 2 AS tier, NULL AS key, :q <<-> " + SEARCH_KEY + " AS dist " +
+        "FROM main.users WHERE " + SEARCH_KEY + " LIKE :contains AND " + SEARCH_CONTAINS + " " +
+        "AND (SELECT count(*) FROM matches) > :ranked ORDER BY :q <<-> " + SEARCH_KEY + " LIMIT :candidates)";
+    private static final String SEARCH_BEST_TIER = "SELECT DISTINCT ON (id) * FROM (%s) AS t " +
+        "ORDER BY id, tier, key USING ~<~, dist";
+    private static final String SEARCH_ORDER = " ORDER BY tier, key USING ~<~, dist, id LIMIT :limit OFFSET :offset";
+    private static final String SEARCH_PREFIX_SQL = "SELECT " + SEARCH_COLUMNS + " FROM (" +
+        String.format(SEARCH_BEST_TIER, SEARCH_EXACT + " UNION ALL " + SEARCH_PREFIX) + ") AS m" +
+        SEARCH_ORDER;
+    private static final String SEARCH_SQL = "WITH " + SEARCH_MATCHES + " SELECT " + SEARCH_COLUMNS + " FROM (" +
+        String.format(SEARCH_BEST_TIER, SEARCH_EXACT + " UNION ALL " + SEARCH_PREFIX + " UNION ALL " +
+        SEARCH_SUBSTRING) + ") AS m" + SEARCH_ORDER;
+    // Substrings are ranked in full up to this many matches per candidate, past that KNN is faster
+    private static final int RANKED_PER_CANDIDATE = 10;
+    private static final RowMapper<UserDto> DTO_MAPPER = (rs, i) -> new UserDto(
+        rs.getLong("id"),
+        rs.getString("email"),
+        rs.getString("name"),
+        rs.getDate("created"),
+        rs.getLong("version")
+    );
 
     private final UserRepo userRepo;
+    private final EntityManager entityManager;
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final UserEmailFilter emailFilter;
+    private final int maxPageSize;
+    private final int exportFetchSize;
+    private final int searchMaxResults;
 
 
     /**
      * Constructor()
      * 
      * @param userRepo
+     * @param entityManager
+     * @param jdbcTemplate
+     * @param emailFilter
+     * @param maxPageSize
+     * @param exportFetchSize
+     * @param searchMaxResults matches ranked per tier of a search
      */
-    public UserDao(UserRepo userRepo) {
+    public UserDao(
+        UserRepo userRepo,
+        EntityManager entityManager,
+        NamedParameterJdbcTemplate jdbcTemplate,
+        UserEmailFilter emailFilter,
+        @Value("${users.page.max-size:100}") int maxPageSize,
+        @Value("${users.export.fetch-size:1000}") int exportFetchSize,
+        @Value("${users.search.max-results:1000}") int searchMaxResults
+    ) {
         this.userRepo = userRepo;
+        this.entityManager = entityManager;
+        this.jdbcTemplate = jdbcTemplate;
+        this.emailFilter = emailFilter;
+        this.maxPageSize = maxPageSize;
+        this.exportFetchSize = exportFetchSize;
+        this.searchMaxResults = searchMaxResults;
     }
     
 
     /**
-     * Find a user by id.
+     * Fetch one page of users ordered by id. The limit is capped at the max page size. One extra
+     * row is fetched to find out if there is a next page.
      * 
+     * @param limit
+     * @param after id of the last user on the previous page, null for the first page
      * @return
      */
-    public List<User> getAll() {
-        return userRepo.findAll();
+    @Transactional(readOnly = true)
+    public UserPage getPage(int limit, Long after) {
+        if (limit < 1) {
+            throw new BadRequestException(BAD_LIMIT_MSG);
+        }
+        limit = Math.min(limit, maxPageSize);
+        Pageable pageable = PageRequest.of(0, limit + 1);
+        List<UserDto> users = (after == null)
+            ? userRepo.findPage(pageable)
+            : userRepo.findPageAfter(after, pageable);
+        // Trim the extra row and use the last id as the cursor
+        Long next = null;
+        if (users.size() > limit) {
+            users = users.subList(0, limit);
+            next = users.get(limit - 1).getId();
+        }
+        return new UserPage(users, next);
+    }
+
+
+    /**
+     * Find users whose name or email starts with or contains the text, ignoring case, most
+     * relevant first. Text shorter than 3 characters only matches prefixes. Each tier keeps its
+     * best "max-results" exact, prefix and substring matches, so paging past them doesn't reach
+     * the rest of a very common term's matches. One extra row is fetched to find out if there is
+     * a next page.
+     * 
+     * @param q
+     * @param limit capped at the max page size
+     * @param offset
+     * @return the page, "next" is the offset of the next page
+     */
+    @Transactional(readOnly = true)
+    public UserPage search(String q, int limit, int offset) {
+        String text = (q == null) ? "" : q.trim().toLowerCase(Locale.ROOT);
+        if (text.isEmpty() || text.length() > MAX_QUERY_LENGTH) {
+            throw new BadRequestException(String.format(BAD_QUERY_MSG, MAX_QUERY_LENGTH));
+        }
+        if (limit < 1) {
+            throw new BadRequestException(BAD_LIMIT_MSG);
+        }
+        if (offset < 0) {
+            throw new BadRequestException(BAD_OFFSET_MSG);
+        }
+        limit = Math.min(limit, maxPageSize);
+        Map<String, Object> params = getSearchParams(text, limit + 1, offset, searchMaxResults);
+        List<UserDto> users = jdbcTemplate.query(getSearchSql(text), params, DTO_MAPPER);
+        // Trim the extra row
+        Long next = null;
+        if (users.size() > limit) {
+            users = users.subList(0, limit);
+            next = (long) offset + limit;
+        }
+        return new UserPage(users, next);
+    }
+
+
+    /**
+     * Pass every user, ordered by id, to the action. Rows are read through a database cursor
+     * and nothing is kept once the action returns, so memory use doesn't grow with the size of
+     * the table.
+     * 
+     * @param action
+     */
+    @Transactional(readOnly = true)
+    public void forEach(Consumer<UserDto> action) {
+        Stream<UserDto> users = entityManager.createQuery(STREAM_ALL_QUERY, UserDto.class)
+            .setHint(QueryHints.HINT_FETCH_SIZE, exportFetchSize)
+            .getResultStream();
+        try (users) {
+            users.forEach(action);
+        }
     }
 
 
@@ -58,51 +235,79 @@ public class UserDao {
      * @param id
      * @return
      */
-    public User getOne(Long id) {
-        Optional<User> resp = userRepo.findById(id);
+    @Transactional(readOnly = true)
+    public UserDto getOne(Long id) {
+        Optional<UserDto> resp = userRepo.findDtoById(id);
         return resp.orElseThrow(() -> {
             String msg = UserDao.getIdNotFoundMsg(id);
-            return new EntityNotFoundException(msg);
+            return new NotFoundException(msg);
         });
     }
 
 
     /**
-     * Add one user.
+     * Add one user. Sets the generated id on the user.
      * 
      * @param user
      */
     public void addOne(User user) {
-        User resp = userRepo.findByIdOrEmail(user.getId(), user.getEmail());
-        if (resp != null) {
+        // Taken ids and emails come back as no id, anything else the table rejects is bad input
+        Long id;
+        try {
+            id = userRepo.insertOne(user.getId(), user.getEmail(), user.getName(), user.getPwdHash());
+        } catch (DataIntegrityViolationException ex) {
+            throw new BadRequestException(UserDao.getInvalidUserMsg());
+        }
+        if (id == null) {
             String msg = UserDao.getAlreadyPersistsMsg(user.getId(), user.getEmail());
-            throw new EntityExistsException(msg);
-        };
-        // Do db query
-        userRepo.save(user);
+            throw new ConflictException(msg);
+        }
+        user.setId(id);
+        emailFilter.put(user.getEmail());
     }
 
 
     /**
-     * Update one user by id.
+     * Update one user by id in a single statement.
      * 
      * @param user
      */
     public void updateOne(User user) {
-        // Check id not found
-        Optional<User> resp = userRepo.findById(user.getId());
-        resp.orElseThrow(() -> {
-            String msg = UserDao.getIdNotFoundMsg(user.getId());
-            throw new EntityNotFoundException(msg);
-        });
-        // Check email already persists
-        User userWithEmail = userRepo.findByEmail(user.getEmail());
-        if (userWithEmail != null && userWithEmail.getId() != user.getId()) {
+        updateOne(user, null);
+    }
+
+
+    /**
+     * Update one user by id in a single statement, if it's still at the version the client last
+     * saw. Only a failed update checks whether the id exists, to tell not-found from a stale
+     * version. The check runs in the update's transaction so it reads the primary, not a replica.
+     * 
+     * @param user
+     * @param version null to update whatever the version
+     */
+    public void updateOne(User user, Long version) {
+        // Update user, the unique constraint on email rejects taken emails
+        int count;
+        try {
+            count = userRepo.updateOne(user.getId(), user.getEmail(), user.getName(), user.getPwdHash(),
+                version);
+        } catch (DataIntegrityViolationException ex) {
+            if (!UserDao.isEmailTaken(ex)) {
+                throw new BadRequestException(UserDao.getInvalidUserMsg());
+            }
             String msg = UserDao.getEmailAlreadyTakenMsg(user.getEmail());
-            throw new RuntimeException(msg);
+            throw new ConflictException(msg);
+        }
+        // Check id not found or version changed
+        if (count == 0) {
+            if (version != null && userRepo.existsById(user.getId())) {
+                String msg = UserDao.getVersionChangedMsg(user.getId(), version);
+                throw new PreconditionFailedException(msg);
+            }
+            String msg = UserDao.getIdNotFoundMsg(user.getId());
+            throw new NotFoundException(msg);
         }
-        // Update user
-        userRepo.updateOne(user.getId(), user.getEmail(), user.getName(), user.getPwdHash());
+        emailFilter.put(user.getEmail());
     }
 
 
@@ -112,14 +317,26 @@ public class UserDao {
      * @param id
      */
     public void deleteOne(Long id) {
+        int count = userRepo.deleteOne(id);
         // Check id not found
-        Optional<User> resp =userRepo.findById(id);
-        if (!resp.isPresent()) {
+        if (count == 0) {
             String msg = UserDao.getIdNotFoundMsg(id);
-            throw new EntityNotFoundException(msg);
+            throw new NotFoundException(msg);
         }
-        // Delete by id
-        userRepo.deleteById(id);
+    }
+
+
+    /**
+     * Delete many users by id in one statement. Ids that aren't found are ignored.
+     * 
+     * @param ids
+     * @return the number of users deleted
+     */
+    public int deleteMany(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return userRepo.deleteAllByIdIn(ids);
     }
 
 
@@ -127,6 +344,83 @@ public class UserDao {
      *                                       Helpers
      ****************************************************************************************/
     
+    /**
+     * Get the search query for the text.
+     * 
+     * @param text trimmed and lower case
+     * @return
+     */
+    public static String getSearchSql(String text) {
+        return (text.length() < MIN_SUBSTRING_LENGTH) ? SEARCH_PREFIX_SQL : SEARCH_SQL;
+    }
+
+
+    /**
+     * Get the parameters of the search query.
+     * 
+     * @param text trimmed and lower case
+     * @param limit
+     * @param offset
+     * @param candidates
+     * @return
+     */
+    public static Map<String, Object> getSearchParams(String text, int limit, int offset, int candidates) {
+        String escaped = escapeLike(text);
+        return Map.of(
+            "q", text,
+            "prefix", escaped + "%",
+            "contains", "%" + escaped + "%",
+            "limit", limit,
+            "offset", offset,
+            "candidates", candidates,
+            "ranked", candidates * RANKED_PER_CANDIDATE
+        );
+    }
+
+
+    /**
+     * Escape the LIKE wildcards so they match themselves.
+     * 
+     * @param text
+     * @return
+     */
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+
+    /**
+     * Whether the error is the unique constraint on email rejecting a taken email. Other
+     * violations (a value too long for its column, another constraint) aren't conflicts.
+     * 
+     * @param ex a translated error, its causes are checked for the driver's
+     * @return
+     */
+    public static boolean isEmailTaken(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof PSQLException) {
+                PSQLException psqlEx = (PSQLException) cause;
+                ServerErrorMessage err = psqlEx.getServerErrorMessage();
+                return isEmailTaken(psqlEx.getSQLState(), (err == null) ? null : err.getConstraint());
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Whether an error from the database, by its SQLSTATE and constraint name, is the unique
+     * constraint on email rejecting a taken email. For drivers other than JDBC.
+     * 
+     * @param sqlState
+     * @param constraint null if the error has none
+     * @return
+     */
+    public static boolean isEmailTaken(String sqlState, String constraint) {
+        return UNIQUE_VIOLATION.equals(sqlState) && EMAIL_CONSTRAINT.equals(constraint);
+    }
+
+
     /**
      * Get message for id not found.
      * 
@@ -156,4 +450,26 @@ public class UserDao {
     public static String getEmailAlreadyTakenMsg(String email) {
         return EMAIL_TAKEN_MSG_1 + email + EMAIL_TAKEN_MSG_2;
     }
-}
+
+
+    /**
+     * Get message for a user the table rejected for something other than a taken id or email.
+     * 
+     * @return
+     */
+    public static String getInvalidUserMsg() {
+        return INVALID_USER_MSG;
+    }
+
+
+    /**
+     * Get message for a version that's out of date.
+     * 
+     * @param id
+     * @param version
+     * @return
+     */
+    public static String getVersionChangedMsg(Long id, Long version) {
+        return VERSION_MSG_1 + id + VERSION_MSG_2 + version + ".";
+    }
+}
\ No newline at end of file
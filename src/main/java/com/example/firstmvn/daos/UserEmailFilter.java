@@ -0,0 +1,244 @@
+/**
+ * Bloom filter over every user email. If it says an email isn't there, the email is free and a
+ * lookup query can be skipped. It's built from the table at startup, rebuilt on an interval to
+ * pick up writes from other nodes, and added to on every local write. It's only a hint, the
+ * unique constraint on email still has the final say.
+ */
+
+package com.example.firstmvn.daos;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+// Build at startup even with lazy initialization, not on the first request
+@Component
+@Lazy(false)
+public class UserEmailFilter {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(UserEmailFilter.class);
+
+    private static final String COUNT_SQL = "SELECT count(*) FROM main.users";
+    private static final String EMAILS_SQL = "SELECT email FROM main.users WHERE email IS NOT NULL";
+    private static final int FETCH_SIZE = 10_000;
+    private static final long MIN_SIZE = 10_000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate txTemplate;
+    private final boolean enabled;
+    private final double fpp;
+    private final double headroom;
+    private final Duration rebuildInterval;
+
+    private final Timer rebuildTimer;
+    private final Counter maybeCounter;
+    private final Counter absentCounter;
+    private final Counter falsePositiveCounter;
+
+    private volatile BloomFilter<CharSequence> filter;
+    private volatile BloomFilter<CharSequence> building;
+    private ScheduledExecutorService scheduler;
+
+
+    /**
+     * Constructor()
+     * 
+     * @param jdbcTemplate
+     * @param transactionManager
+     * @param meterRegistry
+     * @param enabled
+     * @param fpp target false-positive rate
+     * @param headroom size the filter for this many times the current number of users
+     * @param rebuildInterval
+     */
+    public UserEmailFilter(
+        JdbcTemplate jdbcTemplate,
+        PlatformTransactionManager transactionManager,
+        MeterRegistry meterRegistry,
+        @Value("${users.email-filter.enabled:true}") boolean enabled,
+        @Value("${users.email-filter.fpp:0.01}") double fpp,
+        @Value("${users.email-filter.headroom:2.0}") double headroom,
+        @Value("${users.email-filter.rebuild-interval:10m}") Duration rebuildInterval
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.txTemplate = new TransactionTemplate(transactionManager);
+        this.txTemplate.setReadOnly(true);
+        this.enabled = enabled;
+        this.fpp = fpp;
+        this.headroom = headroom;
+        this.rebuildInterval = rebuildInterval;
+        // Metrics
+        this.rebuildTimer = meterRegistry.timer("users.email.filter.rebuild");
+        this.maybeCounter = meterRegistry.counter("users.email.filter.checks", "result", "maybe");
+        this.absentCounter = meterRegistry.counter("users.email.filter.checks", "result", "absent");
+        this.falsePositiveCounter = meterRegistry.counter("users.email.filter.false.positives");
+        Gauge.builder("users.email.filter.fpp", this, UserEmailFilter::getFalsePositiveRate)
+            .description("Share of free emails the filter couldn't rule out")
+            .register(meterRegistry);
+        Gauge.builder("users.email.filter.expected.fpp", this, UserEmailFilter::getExpectedFpp)
+            .register(meterRegistry);
+    }
+
+
+    /**
+     * Build the filter and schedule rebuilds.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        rebuild();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-email-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMs = rebuildInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::rebuildQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stop rebuilding.
+     */
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Build a new filter from the users table. Emails are streamed through a cursor so the
+     * table is never held in memory. Emails added while this runs go into both filters.
+     */
+    public void rebuild() {
+        long start = System.nanoTime();
+        Long count = jdbcTemplate.queryForObject(COUNT_SQL, Long.class);
+        long size = Math.max(MIN_SIZE, (long) (count * headroom));
+        BloomFilter<CharSequence> next = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), size, fpp);
+        building = next;
+        txTemplate.executeWithoutResult(status -> jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(EMAILS_SQL);
+            ps.setFetchSize(FETCH_SIZE);
+            return ps;
+        }, rs -> {
+            next.put(rs.getString(1));
+        }));
+        filter = next;
+        building = null;
+        rebuildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        LOGGER.info("Rebuilt user email filter from {} users in {}ms", count,
+            (System.nanoTime() - start) / 1_000_000);
+    }
+
+
+    /**
+     * Check if an email might be taken. False means it's definitely free (as of the last
+     * rebuild plus this node's writes).
+     * 
+     * @param email
+     * @return
+     */
+    public boolean mightContain(String email) {
+        BloomFilter<CharSequence> current = filter;
+        if (current == null || email == null) {
+            return true;
+        }
+        boolean maybe = current.mightContain(email);
+        (maybe ? maybeCounter : absentCounter).increment();
+        return maybe;
+    }
+
+
+    /**
+     * Add an email that was just written.
+     * 
+     * @param email
+     */
+    public void put(String email) {
+        if (email == null) {
+            return;
+        }
+        BloomFilter<CharSequence> current = filter;
+        BloomFilter<CharSequence> next = building;
+        if (current != null) {
+            current.put(email);
+        }
+        if (next != null) {
+            next.put(email);
+        }
+    }
+
+
+    /**
+     * Record that an email the filter couldn't rule out turned out to be free.
+     */
+    public void recordFalsePositive() {
+        falsePositiveCounter.increment();
+    }
+
+
+    /**
+     * Observed false-positive rate: free emails the filter said "maybe" to, out of all free
+     * emails checked.
+     * 
+     * @return
+     */
+    public double getFalsePositiveRate() {
+        double falsePositives = falsePositiveCounter.count();
+        double negatives = falsePositives + absentCounter.count();
+        return (negatives == 0) ? 0 : falsePositives / negatives;
+    }
+
+
+    /**
+     * False-positive rate the filter expects given how full it is.
+     * 
+     * @return
+     */
+    public double getExpectedFpp() {
+        BloomFilter<CharSequence> current = filter;
+        return (current == null) ? 0 : current.expectedFpp();
+    }
+
+
+    /**
+     * Rebuild from the scheduler, keeping the old filter if it fails.
+     */
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (RuntimeException ex) {
+            building = null;
+            LOGGER.warn("Couldn't rebuild user email filter: {}", ex.getMessage());
+        }
+    }
+}
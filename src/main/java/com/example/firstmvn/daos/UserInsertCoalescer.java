@@ -0,0 +1,373 @@
+/**
+ * Coalesce concurrent single-user inserts (e.g. a spike of signups) into multi-row inserts. Each
+ * caller queues its user and waits, a background thread takes the first user plus whatever
+ * arrives within the window (up to max-batch) and inserts them with one statement and one
+ * commit. Every caller still gets its own id or ConflictException. The extra latency is at most
+ * the window plus the batch ahead of it. Users that come with an id of their own (new ones have
+ * -1) or without an email, and every insert once the queue is full or the thread has stopped, go
+ * straight to UserDao.addOne. Batch sizes are published as "users.insert.batch", and batches the
+ * database rejected, whose users were inserted one by one, are counted in
+ * "users.insert.batch.fallbacks". Turn on with "users.insert-coalescing.enabled".
+ */
+
+package com.example.firstmvn.daos;
+
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.ConflictException;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+@Component
+@ConditionalOnProperty(name = "users.insert-coalescing.enabled", havingValue = "true")
+public class UserInsertCoalescer {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(UserInsertCoalescer.class);
+
+    public static final String BATCH_SUMMARY = "users.insert.batch";
+    public static final String FALLBACK_COUNTER = "users.insert.batch.fallbacks";
+
+    // One array per column, in the order of the column list (SqlLogger masks pwdHash by position)
+    private static final String INSERT_SQL = "INSERT INTO main.users (email, name, pwdHash, created) " +
+        "SELECT unnest(?::varchar[]), unnest(?::varchar[]), unnest(?::varchar[]), CURRENT_DATE " +
+        "ON CONFLICT DO NOTHING " +
+        "RETURNING id, email";
+    private static final long POLL_MS = 100;
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private final UserDao userDao;
+    private final UserEmailFilter emailFilter;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate txTemplate;
+    private final DistributionSummary batchSizes;
+    private final Counter fallbacks;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> queue;
+
+    private volatile boolean running;
+    private Thread thread;
+
+
+    /**
+     * Constructor()
+     *
+     * @param userDao
+     * @param emailFilter
+     * @param jdbcTemplate
+     * @param transactionManager
+     * @param meterRegistry
+     * @param window how long to keep collecting users after the first one arrives
+     * @param maxBatch
+     * @param maxPending users waiting at most, inserts past that aren't coalesced
+     */
+    public UserInsertCoalescer(
+        UserDao userDao,
+        UserEmailFilter emailFilter,
+        JdbcTemplate jdbcTemplate,
+        PlatformTransactionManager transactionManager,
+        MeterRegistry meterRegistry,
+        @Value("${users.insert-coalescing.window:2ms}") Duration window,
+        @Value("${users.insert-coalescing.max-batch:100}") int maxBatch,
+        @Value("${users.insert-coalescing.max-pending:10000}") int maxPending
+    ) {
+        this.userDao = userDao;
+        this.emailFilter = emailFilter;
+        this.jdbcTemplate = jdbcTemplate;
+        this.txTemplate = new TransactionTemplate(transactionManager);
+        this.batchSizes = DistributionSummary.builder(BATCH_SUMMARY)
+            .baseUnit("users")
+            .register(meterRegistry);
+        this.fallbacks = Counter.builder(FALLBACK_COUNTER)
+            .description("Batches the database rejected, inserted one user at a time")
+            .register(meterRegistry);
+        this.windowNanos = window.toNanos();
+        this.maxBatch = maxBatch;
+        this.queue = new LinkedBlockingQueue<>(maxPending);
+    }
+
+
+    /**
+     * Start inserting in the background.
+     */
+    @PostConstruct
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "user-insert-coalescer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Insert what's still queued and stop.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.join(STOP_TIMEOUT_MS);
+        }
+    }
+
+
+    /**
+     * Add one user, sharing the insert with other callers. Sets the generated id on the user.
+     *
+     * @param user
+     * @throws ConflictException
+     */
+    public void addOne(User user) throws ConflictException {
+        Pending pending = new Pending(user);
+        // Generated ids start at 1, only those can already persist. Ids come back by email, and
+        // there can be any number of users without one.
+        boolean hasId = user.getId() != null && user.getId() > 0;
+        if (hasId || user.getEmail() == null || !running || !queue.offer(pending)) {
+            userDao.addOne(user);
+            return;
+        }
+        Long id = await(pending);
+        if (id == null) {
+            userDao.addOne(user);
+        } else {
+            user.setId(id);
+        }
+    }
+
+
+    /**
+     * Wait for the user's id. Checks every poll interval that the thread is still there to
+     * insert it, if it stopped (shutdown, or it died) before taking the user, the user is taken
+     * back.
+     *
+     * @param pending
+     * @return the id, or null if the user was taken back and still has to be inserted
+     * @throws ConflictException
+     */
+    private Long await(Pending pending) throws ConflictException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pending.result.get(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    if ((!running || !thread.isAlive()) && queue.remove(pending)) {
+                        return null;
+                    }
+                } catch (InterruptedException ex) {
+                    // The user may be in the batch being inserted, it can't be given up on
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Collect and insert batches until stopped, then insert whatever is left in the queue.
+     */
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    collect(batch);
+                    insert(batch);
+                } catch (InterruptedException ex) {
+                    // Nothing should interrupt it, don't leave anyone waiting if something does
+                    running = false;
+                    queue.drainTo(batch);
+                    batch.forEach(this::insertAlone);
+                    return;
+                } catch (RuntimeException ex) {
+                    // Don't let one batch stop the thread
+                    LOGGER.error("Couldn't insert a batch of users", ex);
+                    batch.forEach(pending -> pending.result.completeExceptionally(ex));
+                }
+                batch.clear();
+            }
+        } finally {
+            // Only left over if an Error stopped the thread, whether it was inserted isn't known.
+            // Users still queued are taken back by their callers.
+            var stopped = new IllegalStateException("The user insert coalescer stopped");
+            batch.forEach(pending -> pending.result.completeExceptionally(stopped));
+        }
+    }
+
+
+    /**
+     * Add the users that arrive within the window of the first one, up to max-batch. Users
+     * already queued are taken without waiting.
+     *
+     * @param batch
+     */
+    private void collect(List<Pending> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch) {
+            queue.drainTo(batch, maxBatch - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatch || remaining <= 0) {
+                return;
+            }
+            Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+
+    /**
+     * Insert a batch and hand each caller its result. Only the first of several users with the
+     * same email is sent, the rest conflict with it. If the database rejects the statement (a
+     * value too long for its column) each user is inserted on its own so only theirs fails, with
+     * the same error UserDao.addOne() gives.
+     *
+     * @param batch
+     */
+    private void insert(List<Pending> batch) {
+        batchSizes.record(batch.size());
+        Map<String, Pending> byEmail = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            if (byEmail.putIfAbsent(pending.user.getEmail(), pending) != null) {
+                pending.result.completeExceptionally(getConflict(pending.user));
+            }
+        }
+        List<Pending> unique = new ArrayList<>(byEmail.values());
+        Map<String, Long> ids;
+        try {
+            ids = txTemplate.execute(status -> insertAll(unique));
+        } catch (DataIntegrityViolationException ex) {
+            fallbacks.increment();
+            LOGGER.warn("Insert of {} users rejected, inserting them one by one: {}", unique.size(),
+                ex.getMostSpecificCause().getMessage());
+            unique.forEach(this::insertAlone);
+            return;
+        }
+        for (Pending pending : unique) {
+            Long id = ids.get(pending.user.getEmail());
+            if (id == null) {
+                pending.result.completeExceptionally(getConflict(pending.user));
+            } else {
+                emailFilter.put(pending.user.getEmail());
+                pending.result.complete(id);
+            }
+        }
+    }
+
+
+    /**
+     * Insert the users in one statement.
+     *
+     * @param batch no two users with the same email
+     * @return the new ids by email, users whose email was taken are missing
+     */
+    private Map<String, Long> insertAll(List<Pending> batch) {
+        String[] emails = new String[batch.size()];
+        String[] names = new String[batch.size()];
+        String[] pwdHashes = new String[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            User user = batch.get(i).user;
+            emails[i] = user.getEmail();
+            names[i] = user.getName();
+            pwdHashes[i] = user.getPwdHash();
+        }
+        Map<String, Long> ids = new HashMap<>();
+        RowCallbackHandler handler = rs -> ids.put(rs.getString(2), rs.getLong(1));
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(INSERT_SQL);
+            ps.setArray(1, con.createArrayOf("varchar", emails));
+            ps.setArray(2, con.createArrayOf("varchar", names));
+            ps.setArray(3, con.createArrayOf("varchar", pwdHashes));
+            return ps;
+        }, handler);
+        return ids;
+    }
+
+
+    /**
+     * Insert one user of a batch the statement rejected.
+     *
+     * @param pending
+     */
+    private void insertAlone(Pending pending) {
+        try {
+            userDao.addOne(pending.user);
+            pending.result.complete(pending.user.getId());
+        } catch (RuntimeException ex) {
+            pending.result.completeExceptionally(ex);
+        }
+    }
+
+
+    /**
+     * Get the same conflict UserDao.addOne() throws.
+     *
+     * @param user
+     * @return
+     */
+    private static ConflictException getConflict(User user) {
+        return new ConflictException(UserDao.getAlreadyPersistsMsg(user.getId(), user.getEmail()));
+    }
+
+
+    /**
+     * A queued user and the id (or the exception) its caller is waiting for.
+     */
+    private static class Pending {
+
+        private final User user;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+
+        Pending(User user) {
+            this.user = user;
+        }
+    }
+}
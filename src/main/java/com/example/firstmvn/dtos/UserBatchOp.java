@@ -0,0 +1,79 @@
+/**
+ * One create, update or delete in a batch request. Creates and updates carry a "user", deletes
+ * carry an "id" and no "user".
+ */
+
+package com.example.firstmvn.dtos;
+
+import com.example.firstmvn.entities.User;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+public class UserBatchOp {
+
+    public enum Type {
+        @JsonProperty("create") CREATE,
+        @JsonProperty("update") UPDATE,
+        @JsonProperty("delete") DELETE
+    }
+
+    private Type op;
+    private Long id;
+    private User user;
+
+
+    public UserBatchOp() {
+    }
+
+
+    public UserBatchOp(Type op, Long id, User user) {
+        this.op = op;
+        this.id = id;
+        this.user = user;
+    }
+
+
+    public static UserBatchOp create(User user) {
+        return new UserBatchOp(Type.CREATE, null, user);
+    }
+
+
+    public static UserBatchOp update(User user) {
+        return new UserBatchOp(Type.UPDATE, null, user);
+    }
+
+
+    public static UserBatchOp delete(Long id) {
+        return new UserBatchOp(Type.DELETE, id, null);
+    }
+
+
+    public Type getOp() {
+        return this.op;
+    }
+
+
+    public void setOp(Type op) {
+        this.op = op;
+    }
+
+
+    public Long getId() {
+        return this.id;
+    }
+
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+
+    public User getUser() {
+        return this.user;
+    }
+
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+}
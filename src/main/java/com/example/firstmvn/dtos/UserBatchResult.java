@@ -0,0 +1,75 @@
+/**
+ * Outcome of one operation in a batch request.
+ */
+
+package com.example.firstmvn.dtos;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserBatchResult {
+
+    private static final String SKIPPED_MSG =
+        "Not applied because another operation in the batch failed.";
+
+    public enum Status {
+        @JsonProperty("ok") OK,
+        @JsonProperty("conflict") CONFLICT,
+        @JsonProperty("not-found") NOT_FOUND,
+        @JsonProperty("bad-request") BAD_REQUEST,
+        @JsonProperty("skipped") SKIPPED
+    }
+
+    private final Status status;
+    private final Long id;
+    private final String message;
+
+
+    public UserBatchResult(Status status, Long id, String message) {
+        this.status = status;
+        this.id = id;
+        this.message = message;
+    }
+
+
+    public static UserBatchResult ok(Long id) {
+        return new UserBatchResult(Status.OK, id, null);
+    }
+
+
+    public static UserBatchResult conflict(String message) {
+        return new UserBatchResult(Status.CONFLICT, null, message);
+    }
+
+
+    public static UserBatchResult notFound(String message) {
+        return new UserBatchResult(Status.NOT_FOUND, null, message);
+    }
+
+
+    public static UserBatchResult badRequest(String message) {
+        return new UserBatchResult(Status.BAD_REQUEST, null, message);
+    }
+
+
+    public static UserBatchResult skipped() {
+        return new UserBatchResult(Status.SKIPPED, null, SKIPPED_MSG);
+    }
+
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+
+    public Long getId() {
+        return this.id;
+    }
+
+
+    public String getMessage() {
+        return this.message;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * What the read endpoints return for a user. Filled in by JPQL constructor expressions (see
+ * UserRepo.DTO_SELECT) so only these columns are selected, and nothing is managed by Hibernate.
+ * Leaves out "pwdHash".
+ */
+
+package com.example.firstmvn.dtos;
+
+import java.sql.Date;
+
+
+public class UserDto {
+
+    private final Long id;
+    private final String email;
+    private final String name;
+    private final Date created;
+    private final Long version;
+
+
+    /**
+     * Constructor(). The order must match UserRepo.DTO_SELECT. Hibernate looks the constructor up
+     * by the "date" type's java.util.Date, the value it passes is already a java.sql.Date.
+     * 
+     * @param id
+     * @param email
+     * @param name
+     * @param created
+     * @param version
+     */
+    public UserDto(Long id, String email, String name, java.util.Date created, Long version) {
+        this.id = id;
+        this.email = email;
+        this.name = name;
+        this.created = (created == null || created instanceof Date)
+            ? (Date) created
+            : new Date(created.getTime());
+        this.version = version;
+    }
+
+
+    public Long getId() {
+        return this.id;
+    }
+
+
+    public String getEmail() {
+        return this.email;
+    }
+
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    public Date getCreated() {
+        return this.created;
+    }
+
+
+    public Long getVersion() {
+        return this.version;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * One page of users plus the cursor for fetching the next page.
+ */
+
+package com.example.firstmvn.dtos;
+
+import java.util.List;
+
+
+public class UserPage {
+
+    private final List<UserDto> users;
+    private final Long next;
+
+
+    /**
+     * Constructor()
+     * 
+     * @param users
+     * @param next id to pass as "after" for the next page (the "offset" for a search), null if
+     *  this is the last page
+     */
+    public UserPage(List<UserDto> users, Long next) {
+        this.users = users;
+        this.next = next;
+    }
+
+
+    public List<UserDto> getUsers() {
+        return this.users;
+    }
+
+
+    public Long getNext() {
+        return this.next;
+    }
+}
@@ -8,6 +8,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Version;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.Size;
 
@@ -42,6 +43,9 @@ public class User {
     @CreationTimestamp
     private Date created;
 
+    @Version
+    private Long version;
+
 
     public User() {
         this.id = -1L;
@@ -49,6 +53,7 @@ public class User {
         this.name = "";
         this.pwdHash = "";
         this.created = new Date(System.currentTimeMillis());
+        this.version = 0L;
     }
 
 
@@ -58,6 +63,7 @@ public class User {
         this.name = name;
         this.pwdHash = "";
         this.created = new Date(System.currentTimeMillis());
+        this.version = 0L;
     }
 
 
@@ -67,6 +73,7 @@ public class User {
         this.name = name;
         this.pwdHash = "";
         this.created = new Date(System.currentTimeMillis());
+        this.version = 0L;
     }
 
 
@@ -76,6 +83,7 @@ public class User {
         this.name = name;
         this.pwdHash = "";
         this.created = new Date(System.currentTimeMillis());
+        this.version = 0L;
     }
 
 
@@ -85,6 +93,7 @@ public class User {
         this.name = name;
         this.pwdHash = "";
         this.created = new Date(System.currentTimeMillis());
+        this.version = 0L;
     }
 
 
@@ -93,13 +102,15 @@ public class User {
         String email,
         String name,
         String pwdHash,
-        Date created
+        Date created,
+        Long version
     ) {
         this.id = id;
         this.email = email;
         this.name = name;
         this.pwdHash = pwdHash;
         this.created = created;
+        this.version = version;
     }
 
 
@@ -151,4 +162,14 @@ public class User {
     public void setCreated(Date created) {
         this.created = created;
     }
-}
+
+
+    public Long getVersion() {
+        return this.version;
+    }
+
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,18 @@
+/**
+ * The request is invalid, e.g. a bad page limit. Maps to 400.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public class BadRequestException extends DomainException {
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     */
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
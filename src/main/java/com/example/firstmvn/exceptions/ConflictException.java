@@ -0,0 +1,18 @@
+/**
+ * The request conflicts with existing data, e.g. a taken email. Maps to 409.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public class ConflictException extends DomainException {
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     */
+    public ConflictException(String message) {
+        super(message);
+    }
+}
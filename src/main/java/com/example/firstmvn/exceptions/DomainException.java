@@ -0,0 +1,21 @@
+/**
+ * Base for errors that are expected outcomes of a request, e.g. an unknown id or a taken email,
+ * not bugs. They're created without a stack trace since filling one in costs more than the rest
+ * of a not-found request, and nobody reads it. The ControllerAdvisor maps each subclass to a
+ * status code.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public abstract class DomainException extends RuntimeException {
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     */
+    protected DomainException(String message) {
+        super(message, null, false, false);
+    }
+}
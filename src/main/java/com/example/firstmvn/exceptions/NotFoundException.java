@@ -0,0 +1,18 @@
+/**
+ * The requested resource doesn't exist, e.g. an unknown user id. Maps to 404.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public class NotFoundException extends DomainException {
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     */
+    public NotFoundException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * The "If-Match" version is out of date, someone else updated the user first. Maps to 412. It's
+ * a kind of conflict, so it counts as one in the metrics.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public class PreconditionFailedException extends ConflictException {
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     */
+    public PreconditionFailedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * The server is too busy to take the request, try again after "Retry-After". Maps to 503.
+ */
+
+package com.example.firstmvn.exceptions;
+
+
+public class ServiceUnavailableException extends DomainException {
+
+    private final long retryAfterSeconds;
+
+
+    /**
+     * Constructor()
+     *
+     * @param message
+     * @param retryAfterSeconds
+     */
+    public ServiceUnavailableException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
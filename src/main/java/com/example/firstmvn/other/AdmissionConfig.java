@@ -0,0 +1,84 @@
+/**
+ * Put admission control (AdmissionInterceptor) in front of the "/api/users" controllers. Every
+ * endpoint gets "app.admission.default-limit" concurrent requests unless it has its own limit in
+ * "app.admission.limits.<controller method>". Turn on with "app.admission.enabled".
+ */
+
+package com.example.firstmvn.other;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "app.admission.enabled", havingValue = "true")
+public class AdmissionConfig implements WebMvcConfigurer {
+
+    private static final String PATHS = "/api/users/**";
+    private static final String LIMITS_PREFIX = "app.admission.limits";
+
+    private final AdmissionInterceptor interceptor;
+
+
+    /**
+     * Constructor()
+     *
+     * @param environment
+     * @param meterRegistry
+     * @param defaultLimit
+     * @param queueSize requests waiting per endpoint at most
+     * @param queueTimeout how long a request waits for a slot at most
+     * @param retryAfter
+     * @param adaptive
+     * @param minLimit
+     * @param tolerance
+     */
+    public AdmissionConfig(
+        Environment environment,
+        MeterRegistry meterRegistry,
+        @Value("${app.admission.default-limit:10}") int defaultLimit,
+        @Value("${app.admission.queue-size:20}") int queueSize,
+        @Value("${app.admission.queue-timeout:200ms}") Duration queueTimeout,
+        @Value("${app.admission.retry-after:1s}") Duration retryAfter,
+        @Value("${app.admission.adaptive.enabled:false}") boolean adaptive,
+        @Value("${app.admission.adaptive.min-limit:1}") int minLimit,
+        @Value("${app.admission.adaptive.tolerance:2.0}") double tolerance
+    ) {
+        // Relaxed binding can change the case of the keys
+        Map<String, Integer> limits = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        limits.putAll(Binder.get(environment)
+            .bind(LIMITS_PREFIX, Bindable.mapOf(String.class, Integer.class))
+            .orElse(Map.of()));
+        this.interceptor = new AdmissionInterceptor(
+            endpoint -> new ConcurrencyLimiter(
+                endpoint,
+                limits.getOrDefault(endpoint, defaultLimit),
+                queueSize,
+                queueTimeout,
+                adaptive,
+                minLimit,
+                tolerance,
+                meterRegistry
+            ),
+            Math.max(1, retryAfter.toSeconds())
+        );
+    }
+
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(interceptor).addPathPatterns(PATHS);
+    }
+}
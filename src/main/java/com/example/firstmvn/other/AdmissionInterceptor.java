@@ -0,0 +1,82 @@
+/**
+ * Admission control for the controllers. Each endpoint (controller method) gets its own
+ * ConcurrencyLimiter, created on its first request. A request the limiter turns away gets a
+ * ServiceUnavailableException, which the ControllerAdvisor sends as a 503 with "Retry-After".
+ */
+
+package com.example.firstmvn.other;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.example.firstmvn.exceptions.ServiceUnavailableException;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+
+public class AdmissionInterceptor implements HandlerInterceptor {
+
+    private static final String LIMITER_ATTR = AdmissionInterceptor.class.getName() + ".limiter";
+    private static final String START_ATTR = AdmissionInterceptor.class.getName() + ".start";
+    private static final String OVERLOADED_MSG = "Server is busy, try again later.";
+
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private final Function<String, ConcurrencyLimiter> limiterFactory;
+    private final long retryAfterSeconds;
+
+
+    /**
+     * Constructor()
+     *
+     * @param limiterFactory makes the limiter for an endpoint
+     * @param retryAfterSeconds
+     */
+    public AdmissionInterceptor(Function<String, ConcurrencyLimiter> limiterFactory, long retryAfterSeconds) {
+        this.limiterFactory = limiterFactory;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+
+    /**
+     * Wait for a slot on the endpoint's limiter or reject the request.
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+        throws InterruptedException {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        String endpoint = ((HandlerMethod) handler).getMethod().getName();
+        ConcurrencyLimiter limiter = limiters.computeIfAbsent(endpoint, limiterFactory);
+        if (!limiter.acquire()) {
+            throw new ServiceUnavailableException(OVERLOADED_MSG, retryAfterSeconds);
+        }
+        request.setAttribute(LIMITER_ATTR, limiter);
+        request.setAttribute(START_ATTR, System.nanoTime());
+        return true;
+    }
+
+
+    /**
+     * Give the slot back, with how long the request took.
+     */
+    @Override
+    public void afterCompletion(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Object handler,
+        Exception ex
+    ) {
+        ConcurrencyLimiter limiter = (ConcurrencyLimiter) request.getAttribute(LIMITER_ATTR);
+        if (limiter == null) {
+            return;
+        }
+        request.removeAttribute(LIMITER_ATTR);
+        limiter.release(System.nanoTime() - (long) request.getAttribute(START_ATTR));
+    }
+}
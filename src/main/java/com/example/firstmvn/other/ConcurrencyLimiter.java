@@ -0,0 +1,237 @@
+/**
+ * Limit how many requests to one endpoint run at once. Requests over the limit wait in a bounded
+ * queue, first come first served, for up to the queue timeout. They're rejected when the queue is
+ * full or the wait runs out, so a slow database turns into fast rejections instead of a pile of
+ * threads all waiting on the connection pool. With "adaptive" the limit follows the latency: it
+ * shrinks while requests take longer than "tolerance" times the best recent latency, and grows by
+ * one while they don't and the limit is being hit, between the min limit and the configured one.
+ * Publishes "admission.limit", "admission.inflight", "admission.queued" and
+ * "admission.rejected" (by reason), tagged with the endpoint.
+ */
+
+package com.example.firstmvn.other;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+
+public class ConcurrencyLimiter {
+
+    public static final String LIMIT_GAUGE = "admission.limit";
+    public static final String IN_FLIGHT_GAUGE = "admission.inflight";
+    public static final String QUEUED_GAUGE = "admission.queued";
+    public static final String REJECTED_COUNTER = "admission.rejected";
+    public static final String ENDPOINT_TAG = "endpoint";
+    public static final String QUEUE_FULL = "queue-full";
+    public static final String TIMEOUT = "timeout";
+
+    // Latency is averaged over at least this many requests before the limit changes
+    private static final int MIN_SAMPLES = 10;
+    private static final double BACKOFF = 0.9;
+    // How fast the best latency creeps up to the current one, so a database that stays slower
+    // becomes the new normal instead of pinning the limit at the minimum
+    private static final double DRIFT = 0.01;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final int maxLimit;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+    private final boolean adaptive;
+    private final int minLimit;
+    private final double tolerance;
+    private final Counter queueFullCounter;
+    private final Counter timeoutCounter;
+
+    private int limit;
+    private int inFlight;
+    private int queued;
+    private int peakInFlight;
+    private int samples;
+    private long sampleNanos;
+    private double bestLatencyNanos;
+
+
+    /**
+     * Constructor()
+     *
+     * @param endpoint for the metrics tag
+     * @param limit the limit, or the most it can grow to when adaptive
+     * @param queueSize
+     * @param queueTimeout
+     * @param adaptive
+     * @param minLimit
+     * @param tolerance
+     * @param meterRegistry
+     */
+    public ConcurrencyLimiter(
+        String endpoint,
+        int limit,
+        int queueSize,
+        Duration queueTimeout,
+        boolean adaptive,
+        int minLimit,
+        double tolerance,
+        MeterRegistry meterRegistry
+    ) {
+        this.maxLimit = limit;
+        this.limit = limit;
+        this.queueSize = queueSize;
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        this.adaptive = adaptive;
+        this.minLimit = Math.min(minLimit, limit);
+        this.tolerance = tolerance;
+        this.queueFullCounter = meterRegistry.counter(REJECTED_COUNTER, ENDPOINT_TAG, endpoint, "reason", QUEUE_FULL);
+        this.timeoutCounter = meterRegistry.counter(REJECTED_COUNTER, ENDPOINT_TAG, endpoint, "reason", TIMEOUT);
+        Gauge.builder(LIMIT_GAUGE, this, ConcurrencyLimiter::getLimit)
+            .tag(ENDPOINT_TAG, endpoint)
+            .register(meterRegistry);
+        Gauge.builder(IN_FLIGHT_GAUGE, this, ConcurrencyLimiter::getInFlight)
+            .tag(ENDPOINT_TAG, endpoint)
+            .register(meterRegistry);
+        Gauge.builder(QUEUED_GAUGE, this, ConcurrencyLimiter::getQueued)
+            .tag(ENDPOINT_TAG, endpoint)
+            .register(meterRegistry);
+    }
+
+
+    /**
+     * Take a slot, waiting in the queue if there's none free. Every successful acquire must be
+     * followed by a release.
+     *
+     * @return false if the request was rejected
+     * @throws InterruptedException
+     */
+    public boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            // Don't jump ahead of the queue
+            if (inFlight < limit && queued == 0) {
+                admit();
+                return true;
+            }
+            if (queued >= queueSize) {
+                queueFullCounter.increment();
+                return false;
+            }
+            queued++;
+            try {
+                long remaining = queueTimeoutNanos;
+                while (inFlight >= limit) {
+                    if (remaining <= 0) {
+                        timeoutCounter.increment();
+                        return false;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                admit();
+                return true;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Give back a slot.
+     *
+     * @param latencyNanos how long the request took, adjusts the limit when adaptive
+     */
+    public void release(long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (adaptive) {
+                adapt(latencyNanos);
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Count a request in. Call with the lock held.
+     */
+    private void admit() {
+        inFlight++;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+    }
+
+
+    /**
+     * Add a latency sample and, once there are enough, compare their average to the best one.
+     * Call with the lock held.
+     *
+     * @param latencyNanos
+     */
+    private void adapt(long latencyNanos) {
+        samples++;
+        sampleNanos += latencyNanos;
+        if (samples < Math.max(limit, MIN_SAMPLES)) {
+            return;
+        }
+        double average = (double) sampleNanos / samples;
+        samples = 0;
+        sampleNanos = 0;
+        if (bestLatencyNanos == 0 || average < bestLatencyNanos) {
+            bestLatencyNanos = average;
+        } else {
+            bestLatencyNanos += (average - bestLatencyNanos) * DRIFT;
+        }
+        int old = limit;
+        if (average > bestLatencyNanos * tolerance) {
+            limit = Math.max(minLimit, (int) (limit * BACKOFF));
+        } else if (peakInFlight >= limit) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        peakInFlight = inFlight;
+        if (limit > old) {
+            released.signalAll();
+        }
+    }
+}
@@ -1,30 +1,186 @@
 /**
- * Handle errors from the controller.
- * 
+ * Handle errors from the controller. Expected outcomes (not-found, conflict, stale version, bad
+ * request, overloaded) map to their status codes and are logged without a trace, at most
+ * "app.errors.log-per-second" times a second so a scanner probing ids can't flood the log.
+ * Spring MVC's own errors (bad JSON, wrong method or content type, missing parameters) keep the
+ * status and headers ResponseEntityExceptionHandler gives them and are logged the same way. A
+ * client that hangs up mid-response (e.g. during an export) isn't an error. Anything else is a
+ * bug, it gets a 500 and is logged with its stack trace.
+ *
  * created by Sean Maxwell, 1/16/2022
  */
 
 package com.example.firstmvn.other;
 
+import java.io.UncheckedIOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.example.firstmvn.exceptions.BadRequestException;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
+import com.example.firstmvn.exceptions.ServiceUnavailableException;
+
+import org.apache.catalina.connector.ClientAbortException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.HttpMediaTypeNotAcceptableException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
 
 
 @ControllerAdvice
-public class ControllerAdvisor {
+public class ControllerAdvisor extends ResponseEntityExceptionHandler {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(ControllerAdvisor.class);
-    
 
+    private static final String INTERNAL_ERR_MSG = "Internal server error";
+    private static final String CLIENT_ABORT = "Client aborted";
+
+    private final ExpectedErrorLog expectedErrorLog;
+
+
+    /**
+     * Constructor()
+     *
+     * @param logPerSecond
+     */
+    public ControllerAdvisor(@Value("${app.errors.log-per-second:10}") int logPerSecond) {
+        this.expectedErrorLog = new ExpectedErrorLog(LOGGER, logPerSecond);
+    }
+
+
+    @ExceptionHandler(NotFoundException.class)
+    public ResponseEntity<Object> handleNotFound(NotFoundException ex) {
+        return expected(HttpStatus.NOT_FOUND, ex);
+    }
+
+
+    @ExceptionHandler(ConflictException.class)
+    public ResponseEntity<Object> handleConflict(ConflictException ex) {
+        return expected(HttpStatus.CONFLICT, ex);
+    }
+
+
+    @ExceptionHandler(PreconditionFailedException.class)
+    public ResponseEntity<Object> handlePreconditionFailed(PreconditionFailedException ex) {
+        return expected(HttpStatus.PRECONDITION_FAILED, ex);
+    }
+
+
+    /**
+     * Turned away by admission control, see AdmissionInterceptor.
+     */
+    @ExceptionHandler(ServiceUnavailableException.class)
+    public ResponseEntity<Object> handleServiceUnavailable(ServiceUnavailableException ex) {
+        ResponseEntity<Object> resp = expected(HttpStatus.SERVICE_UNAVAILABLE, ex);
+        return ResponseEntity.status(resp.getStatusCode())
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+            .body(resp.getBody());
+    }
+
+
+    /**
+     * Our own validation errors. Requests Spring couldn't bind go through
+     * handleExceptionInternal().
+     */
+    @ExceptionHandler(BadRequestException.class)
+    public ResponseEntity<Object> handleBadRequest(BadRequestException ex) {
+        return expected(HttpStatus.BAD_REQUEST, ex);
+    }
+
+
+    /**
+     * The client hung up, writing to the response failed. There's no one to send a body to.
+     * Other I/O errors are bugs.
+     */
+    @ExceptionHandler({ClientAbortException.class, UncheckedIOException.class})
+    public ResponseEntity<Object> handleIoError(Exception ex, HttpServletResponse response) {
+        if (!isClientAbort(ex)) {
+            return handleUnexpected(ex, response);
+        }
+        expectedErrorLog.log(CLIENT_ABORT, ex);
+        return null;
+    }
+
+
+    /**
+     * Log a bug and respond with a 500, unless the response was already committed (e.g. an
+     * export that failed half way), then only log it.
+     */
     @ExceptionHandler(Exception.class)
-    public ResponseEntity<Object> handleCityNotFoundException(Exception ex, WebRequest request) {
-        LOGGER.error(ex.getMessage());
-        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    public ResponseEntity<Object> handleUnexpected(Exception ex, HttpServletResponse response) {
+        LOGGER.error(ex.getMessage(), ex);
+        if (response.isCommitted()) {
+            return null;
+        }
+        return new ResponseEntity<>(INTERNAL_ERR_MSG, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+
+    /**
+     * Spring MVC's errors, with the status and headers (e.g. "Allow" on a 405) it picked. Only
+     * the 5xx ones (a response that couldn't be written) are bugs.
+     */
+    @Override
+    protected ResponseEntity<Object> handleExceptionInternal(
+        Exception ex,
+        Object body,
+        HttpHeaders headers,
+        HttpStatus status,
+        WebRequest request
+    ) {
+        if (status.is5xxServerError()) {
+            LOGGER.error(ex.getMessage(), ex);
+            return new ResponseEntity<>(INTERNAL_ERR_MSG, headers, status);
+        }
+        expectedErrorLog.log(status.value(), ex);
+        // Whatever the client accepts, a message wouldn't be it
+        if (ex instanceof HttpMediaTypeNotAcceptableException) {
+            return new ResponseEntity<>(headers, status);
+        }
+        return new ResponseEntity<>(ex.getMessage(), headers, status);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Respond with the message and log it.
+     *
+     * @param status
+     * @param ex
+     * @return
+     */
+    private ResponseEntity<Object> expected(HttpStatus status, Exception ex) {
+        expectedErrorLog.log(status.value(), ex);
+        return new ResponseEntity<>(ex.getMessage(), status);
+    }
+
+
+    /**
+     * If writing the response failed because the client went away.
+     *
+     * @param ex
+     * @return
+     */
+    private static boolean isClientAbort(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ClientAbortException) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,60 @@
+/**
+ * Log expected errors (not-found, conflict, bad request...) without a trace, at most
+ * "log-per-second" times a second so a scanner probing ids can't flood the log. How many were
+ * left out is logged once the next second starts. Shared by the servlet and reactive advisors.
+ */
+
+package com.example.firstmvn.other;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+
+public class ExpectedErrorLog {
+
+    private static final String SUPPRESSED_MSG = "{} more expected errors not logged";
+
+    private final Logger logger;
+    private final int logPerSecond;
+    private final AtomicLong logSecond = new AtomicLong();
+    private final AtomicInteger logged = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+
+
+    /**
+     * Constructor()
+     *
+     * @param logger logs at INFO
+     * @param logPerSecond
+     */
+    public ExpectedErrorLog(Logger logger, int logPerSecond) {
+        this.logger = logger;
+        this.logPerSecond = logPerSecond;
+    }
+
+
+    /**
+     * Log the error's message, if this second's budget isn't used up.
+     *
+     * @param what status code, or what happened
+     * @param ex
+     */
+    public void log(Object what, Throwable ex) {
+        long second = System.currentTimeMillis() / 1000;
+        long last = logSecond.get();
+        if (second != last && logSecond.compareAndSet(last, second)) {
+            logged.set(0);
+            long count = suppressed.getAndSet(0);
+            if (count > 0) {
+                logger.info(SUPPRESSED_MSG, count);
+            }
+        }
+        if (logged.incrementAndGet() <= logPerSecond) {
+            logger.info("{} {}", what, ex.getMessage());
+        } else {
+            suppressed.incrementAndGet();
+        }
+    }
+}
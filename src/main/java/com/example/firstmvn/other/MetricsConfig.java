@@ -0,0 +1,141 @@
+/**
+ * Timers for every UserDao method ("users.dao", tagged by method) and a "result" tag on the
+ * controller timers ("http.server.requests"). Both tag the result as ok, not-found, conflict,
+ * rejected (by admission control) or error. Turn off with "app.metrics.enabled", e.g. for benchmarks.
+ */
+
+package com.example.firstmvn.other;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.ServiceUnavailableException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.boot.actuate.metrics.web.servlet.WebMvcTagsContributor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+
+
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "app.metrics.enabled", havingValue = "true", matchIfMissing = true)
+public class MetricsConfig {
+
+    public static final String DAO_TIMER = "users.dao";
+    public static final String RESULT_TAG = "result";
+    public static final String OK = "ok";
+    public static final String NOT_FOUND = "not-found";
+    public static final String CONFLICT = "conflict";
+    public static final String REJECTED = "rejected";
+    public static final String ERROR = "error";
+
+
+    /**
+     * Aspect that times the UserDao methods.
+     *
+     * @param meterRegistry
+     * @return
+     */
+    @Bean
+    public UserDaoTimer userDaoTimer(MeterRegistry meterRegistry) {
+        return new UserDaoTimer(meterRegistry);
+    }
+
+
+    /**
+     * Add the result to the controller timers. The exception handled by the ControllerAdvisor
+     * is still passed in.
+     *
+     * @return
+     */
+    @Bean
+    public WebMvcTagsContributor resultTagsContributor() {
+        return new WebMvcTagsContributor() {
+
+            @Override
+            public Iterable<Tag> getTags(
+                HttpServletRequest request, HttpServletResponse response, Object handler, Throwable exception
+            ) {
+                return Tags.of(RESULT_TAG, result(exception));
+            }
+
+
+            @Override
+            public Iterable<Tag> getLongRequestTags(HttpServletRequest request, Object handler) {
+                return Tags.empty();
+            }
+        };
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Classify an error. Constraint violations from a @Repository arrive translated, so the
+     * whole cause chain is checked. Only a taken email is a conflict, other violations are errors.
+     *
+     * @param ex null for success
+     * @return
+     */
+    public static String result(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotFoundException) {
+                return NOT_FOUND;
+            }
+            if (cause instanceof ConflictException || UserDao.isEmailTaken(cause)) {
+                return CONFLICT;
+            }
+            if (cause instanceof ServiceUnavailableException) {
+                return REJECTED;
+            }
+        }
+        return (ex == null) ? OK : ERROR;
+    }
+
+
+    /**
+     * Time UserDao methods, including the commit. Runs outside the transaction advice.
+     */
+    @Aspect
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public static class UserDaoTimer {
+
+        private final MeterRegistry meterRegistry;
+
+
+        UserDaoTimer(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+        }
+
+
+        @Around("execution(public * com.example.firstmvn.daos.UserDao.*(..))")
+        public Object time(ProceedingJoinPoint joinPoint) throws Throwable {
+            String method = joinPoint.getSignature().getName();
+            Timer.Sample sample = Timer.start(meterRegistry);
+            Throwable error = null;
+            try {
+                return joinPoint.proceed();
+            } catch (Throwable ex) {
+                error = ex;
+                throw ex;
+            } finally {
+                sample.stop(meterRegistry.timer(DAO_TIMER, "method", method, RESULT_TAG, result(error)));
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Send read-only transactions to read replicas, see ReplicaRouter. Replaces the DataSource
+ * Spring Boot would build from "spring.datasource.*" with a routing one: the primary pool is
+ * built from those settings and each replica pool copies them with the replica's url. Turn on
+ * with "app.replicas.enabled" and list the replicas in "app.replicas.urls".
+ */
+
+package com.example.firstmvn.other;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "app.replicas.enabled", havingValue = "true")
+public class ReplicaConfig {
+
+    private static final String HIKARI_PREFIX = "spring.datasource.hikari";
+    private static final String REPLICA_POOL = "replica-";
+
+
+    /**
+     * The primary and replica pools, and which one each connection comes from.
+     *
+     * @param properties
+     * @param environment
+     * @param meterRegistry
+     * @param urls
+     * @param username
+     * @param password
+     * @param connectionTimeout how long a read waits for a replica before using the primary
+     * @param window
+     * @param maxLag
+     * @param healthCheckInterval
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public ReplicaRouter replicaRouter(
+        DataSourceProperties properties,
+        Environment environment,
+        MeterRegistry meterRegistry,
+        @Value("${app.replicas.urls}") List<String> urls,
+        @Value("${app.replicas.username:${spring.datasource.username}}") String username,
+        @Value("${app.replicas.password:${spring.datasource.password}}") String password,
+        @Value("${app.replicas.connection-timeout:1s}") Duration connectionTimeout,
+        @Value("${app.replicas.read-your-writes-window:1s}") Duration window,
+        @Value("${app.replicas.max-lag:5s}") Duration maxLag,
+        @Value("${app.replicas.health-check-interval:5s}") Duration healthCheckInterval
+    ) {
+        // Same as Spring Boot's own Hikari pool
+        HikariDataSource primary = properties.initializeDataSourceBuilder()
+            .type(HikariDataSource.class)
+            .build();
+        Binder.get(environment).bind(HIKARI_PREFIX, Bindable.ofInstance(primary));
+        primary.setPoolName(ReplicaRouter.PRIMARY);
+        primary.setMetricRegistry(meterRegistry);
+        // Replicas copy its settings
+        List<DataSource> replicas = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (String url : urls) {
+            String name = REPLICA_POOL + (names.size() + 1);
+            HikariConfig config = new HikariConfig();
+            primary.copyStateTo(config);
+            config.setPoolName(name);
+            // Its own "hikaricp.*" meters, tagged with the pool name
+            config.setMetricRegistry(meterRegistry);
+            config.setJdbcUrl(url.trim());
+            config.setUsername(username);
+            config.setPassword(password);
+            config.setReadOnly(true);
+            config.setConnectionTimeout(connectionTimeout.toMillis());
+            // Start even if the replica is down, the health check picks it up later
+            config.setInitializationFailTimeout(-1);
+            replicas.add(new HikariDataSource(config));
+            names.add(name);
+        }
+        ReplicaRouter router = new ReplicaRouter(primary, replicas, names, window, maxLag, meterRegistry);
+        router.start(healthCheckInterval);
+        return router;
+    }
+
+
+    /**
+     * The DataSource everything uses. The connection is only fetched from the router on the
+     * first statement, by then the transaction's read-only flag is set.
+     *
+     * @param replicaRouter
+     * @return
+     */
+    @Bean
+    public DataSource dataSource(ReplicaRouter replicaRouter) {
+        return new LazyConnectionDataSourceProxy(replicaRouter.getDataSource());
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * Pick the database for each connection: read-only transactions go to the replicas round-robin,
+ * everything else goes to the primary. Reads stay on the primary when they might not see a
+ * recent write on a replica:
+ *  - for the rest of a request that committed a write
+ *  - for "read-your-writes-window" after any write this node sees, its own commits and the
+ *    changes other nodes publish (see UserChangeListener). Set it above the usual replica lag.
+ * Replicas are health checked in the background and skipped while they're down or lag more than
+ * "max-lag". If none are up reads go to the primary. getDataSource() is the DataSource to hand to
+ * a LazyConnectionDataSourceProxy, which waits until the transaction is set up (and so known to
+ * be read-only) before asking for a connection.
+ */
+
+package com.example.firstmvn.other;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+
+public class ReplicaRouter implements Closeable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    public static final String ROUTE_COUNTER = "datasource.route";
+    public static final String PRIMARY = "primary";
+
+    private static final String WROTE_ATTR = ReplicaRouter.class.getName() + ".wrote";
+    private static final String LAG_SQL = "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+        "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+        "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+    private static final int VALID_TIMEOUT_SECONDS = 2;
+
+    private final DataSource primary;
+    private final List<Replica> replicas;
+    private final long windowNanos;
+    private final double maxLagSeconds;
+    private final Counter primaryCounter;
+    private final AtomicInteger next = new AtomicInteger();
+    private final DataSource dataSource = new RoutingDataSource();
+
+    private volatile long lastWriteNanos;
+    private ScheduledExecutorService scheduler;
+
+
+    /**
+     * Constructor()
+     *
+     * @param primary
+     * @param replicas
+     * @param names one per replica, for the logs and the "pool" tag
+     * @param window
+     * @param maxLag
+     * @param meterRegistry
+     */
+    public ReplicaRouter(
+        DataSource primary,
+        List<DataSource> replicas,
+        List<String> names,
+        Duration window,
+        Duration maxLag,
+        MeterRegistry meterRegistry
+    ) {
+        this.primary = primary;
+        this.replicas = new ArrayList<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            Counter counter = meterRegistry.counter(ROUTE_COUNTER, "pool", names.get(i));
+            this.replicas.add(new Replica(names.get(i), replicas.get(i), counter));
+        }
+        this.windowNanos = window.toNanos();
+        this.maxLagSeconds = maxLag.toMillis() / 1000.0;
+        this.primaryCounter = meterRegistry.counter(ROUTE_COUNTER, "pool", PRIMARY);
+        this.lastWriteNanos = System.nanoTime() - windowNanos - 1;
+    }
+
+
+    /**
+     * The routing DataSource.
+     *
+     * @return
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+
+    /**
+     * Check the replicas now and then every interval.
+     *
+     * @param interval
+     */
+    public void start(Duration interval) {
+        checkReplicas();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMs = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::checkReplicas, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stop the health checks and close the pools.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        closeQuietly(primary);
+        for (Replica replica : replicas) {
+            closeQuietly(replica.dataSource);
+        }
+    }
+
+
+    /**
+     * Keep reads on the primary for the window, a write was committed somewhere.
+     */
+    public void recordWrite() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+
+    /**
+     * Check every replica answers and isn't lagging too far behind.
+     */
+    public void checkReplicas() {
+        for (Replica replica : replicas) {
+            boolean healthy;
+            String reason = null;
+            try (Connection con = replica.dataSource.getConnection()) {
+                healthy = con.isValid(VALID_TIMEOUT_SECONDS);
+                double lag = getLagSeconds(con);
+                if (healthy && lag > maxLagSeconds) {
+                    healthy = false;
+                    reason = "lagging " + lag + "s";
+                }
+            } catch (SQLException ex) {
+                healthy = false;
+                reason = ex.getMessage();
+            }
+            setHealthy(replica, healthy, reason);
+        }
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Get a connection from a replica if this is a read that can go to one, otherwise from the
+     * primary. A replica that fails is marked down and the primary is used instead.
+     *
+     * @return
+     * @throws SQLException
+     */
+    private Connection getConnection() throws SQLException {
+        Replica replica = isReplicaRead() ? nextReplica() : null;
+        if (replica != null) {
+            try {
+                Connection con = replica.dataSource.getConnection();
+                replica.counter.increment();
+                return con;
+            } catch (SQLException ex) {
+                setHealthy(replica, false, ex.getMessage());
+            }
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive() &&
+            !TransactionSynchronizationManager.isCurrentTransactionReadOnly() &&
+            TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new WriteSynchronization());
+        }
+        primaryCounter.increment();
+        return primary.getConnection();
+    }
+
+
+    /**
+     * Read-only transaction, no write earlier in the request and none within the window.
+     *
+     * @return
+     */
+    private boolean isReplicaRead() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return false;
+        }
+        RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+        if (attrs != null && attrs.getAttribute(WROTE_ATTR, RequestAttributes.SCOPE_REQUEST) != null) {
+            return false;
+        }
+        return System.nanoTime() - lastWriteNanos >= windowNanos;
+    }
+
+
+    /**
+     * Round-robin over the replicas that are up.
+     *
+     * @return null if none are
+     */
+    private Replica nextReplica() {
+        int size = replicas.size();
+        int start = next.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get(Math.floorMod(start + i, size));
+            if (replica.healthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Mark a replica up or down, logging the change.
+     *
+     * @param replica
+     * @param healthy
+     * @param reason why it's down
+     */
+    private static void setHealthy(Replica replica, boolean healthy, String reason) {
+        if (replica.healthy == healthy) {
+            return;
+        }
+        replica.healthy = healthy;
+        if (healthy) {
+            LOGGER.info("Replica {} is up", replica.name);
+        } else {
+            LOGGER.warn("Replica {} is down, reads go to the other replicas or the primary: {}",
+                replica.name, reason);
+        }
+    }
+
+
+    /**
+     * Get how far a replica is behind the primary. 0 if it's caught up or isn't a standby.
+     *
+     * @param con
+     * @return
+     * @throws SQLException
+     */
+    private static double getLagSeconds(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+            return rs.next() ? rs.getDouble(1) : 0;
+        }
+    }
+
+
+    private static void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof Closeable) {
+            try {
+                ((Closeable) dataSource).close();
+            } catch (Exception ex) {
+                LOGGER.warn("Couldn't close a pool", ex);
+            }
+        }
+    }
+
+
+    /**
+     * One replica and whether it's up. Replicas start out down until the first health check.
+     */
+    private static class Replica {
+
+        private final String name;
+        private final DataSource dataSource;
+        private final Counter counter;
+
+        private volatile boolean healthy;
+
+
+        Replica(String name, DataSource dataSource, Counter counter) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.counter = counter;
+        }
+    }
+
+
+    /**
+     * Pin the request and start the window once a read-write transaction on the primary commits.
+     */
+    private class WriteSynchronization implements TransactionSynchronization {
+
+        @Override
+        public void afterCommit() {
+            recordWrite();
+            RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+            if (attrs != null) {
+                attrs.setAttribute(WROTE_ATTR, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+            }
+        }
+    }
+
+
+    /**
+     * The DataSource view of the router.
+     */
+    private class RoutingDataSource extends AbstractDataSource {
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return ReplicaRouter.this.getConnection();
+        }
+
+
+        /**
+         * Routed like getConnection(). The pools log in with their own credentials, so these
+         * are ignored.
+         */
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return ReplicaRouter.this.getConnection();
+        }
+    }
+}
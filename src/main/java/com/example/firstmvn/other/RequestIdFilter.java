@@ -0,0 +1,54 @@
+/**
+ * Give every request an id for correlating its log lines, including the SQL log. Uses the
+ * "X-Request-Id" header if the caller (e.g. a load balancer) sent one, otherwise generates one.
+ * The id is in the MDC as "requestId" for the duration of the request and is echoed back in the
+ * response header.
+ */
+
+package com.example.firstmvn.other;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.MDC;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class RequestIdFilter extends OncePerRequestFilter {
+
+    public static final String HEADER = "X-Request-Id";
+    public static final String MDC_KEY = "requestId";
+
+    private static final int MAX_LENGTH = 64;
+
+
+    @Override
+    protected void doFilterInternal(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        FilterChain chain
+    ) throws ServletException, IOException {
+        String id = request.getHeader(HEADER);
+        if (id == null || id.isBlank() || id.length() > MAX_LENGTH) {
+            id = UUID.randomUUID().toString();
+        }
+        response.setHeader(HEADER, id);
+        MDC.put(MDC_KEY, id);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            MDC.remove(MDC_KEY);
+        }
+    }
+}
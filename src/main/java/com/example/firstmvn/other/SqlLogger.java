@@ -0,0 +1,335 @@
+/**
+ * Log SQL from a proxy around the DataSource instead of "spring.jpa.show-sql". Request threads
+ * only format the line and put it in a bounded queue, a background thread writes it. Lines are
+ * dropped (and counted) if the queue is full. A sample of statements is logged at INFO and
+ * every statement slower than the threshold at WARN. Each line has the elapsed time, the request
+ * id (see RequestIdFilter) and the bind parameters, with redacted columns (e.g. "pwdHash")
+ * masked. Logs to "com.example.firstmvn.other.SqlLogger", turn off with "app.sql-log.enabled".
+ */
+
+package com.example.firstmvn.other;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.proxy.ParameterSetOperation;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+
+@Component
+@ConditionalOnProperty(name = "app.sql-log.enabled", havingValue = "true", matchIfMissing = true)
+public class SqlLogger implements BeanPostProcessor, QueryExecutionListener, DisposableBean {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(SqlLogger.class);
+
+    private static final String REDACTED = "***";
+    private static final String NO_REQUEST = "-";
+    private static final int MAX_CACHED_SQL = 1_000;
+    private static final Pattern INSERT_COLUMNS =
+        Pattern.compile("^\\s*insert\\s+into\\s+[\\w.\"]+\\s*\\(([^)]*)\\)\\s*(values\\s*\\(|select\\s+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern COLUMN_EQUALS = Pattern.compile("([\\w\"]+)\\s*=\\s*$");
+
+    private final double sampleRate;
+    private final long slowThresholdMs;
+    private final Set<String> redactedColumns;
+    private final BlockingQueue<Line> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Map<String, Set<Integer>> redactedParams = new ConcurrentHashMap<>();
+    private final Thread writer;
+
+
+    /**
+     * Constructor()
+     *
+     * @param sampleRate fraction of statements to log, 0 to only log slow ones
+     * @param slowThreshold
+     * @param redactedColumns
+     * @param bufferSize
+     */
+    public SqlLogger(
+        @Value("${app.sql-log.sample-rate:0.01}") double sampleRate,
+        @Value("${app.sql-log.slow-threshold:200ms}") Duration slowThreshold,
+        @Value("${app.sql-log.redact:pwdHash}") String[] redactedColumns,
+        @Value("${app.sql-log.buffer-size:10000}") int bufferSize
+    ) {
+        this.sampleRate = sampleRate;
+        this.slowThresholdMs = slowThreshold.toMillis();
+        this.redactedColumns = Arrays.stream(redactedColumns)
+            .map(column -> column.trim().toLowerCase(Locale.ROOT))
+            .collect(Collectors.toCollection(HashSet::new));
+        this.queue = new ArrayBlockingQueue<>(bufferSize);
+        this.writer = new Thread(this::write, "sql-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+
+    /**
+     * Wrap the DataSource, or join the proxy if it's already wrapped.
+     */
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof ProxyDataSource) {
+            ((ProxyDataSource) bean).addListener(this);
+        } else if (bean instanceof DataSource) {
+            return ProxyDataSourceBuilder.create((DataSource) bean)
+                .name(beanName)
+                .listener(this)
+                .build();
+        }
+        return bean;
+    }
+
+
+    @Override
+    public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+    }
+
+
+    /**
+     * Queue the statement if it's slow or sampled.
+     */
+    @Override
+    public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        long elapsed = execInfo.getElapsedTime();
+        boolean slow = elapsed >= slowThresholdMs;
+        if (!slow && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        if (!queue.offer(new Line(slow, describe(execInfo, queryInfoList)))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Format a statement for the log: elapsed time, request id, SQL and parameters.
+     *
+     * @param execInfo
+     * @param queryInfoList
+     * @return
+     */
+    String describe(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        String requestId = MDC.get(RequestIdFilter.MDC_KEY);
+        StringBuilder text = new StringBuilder()
+            .append(execInfo.getElapsedTime()).append("ms [")
+            .append(requestId == null ? NO_REQUEST : requestId).append("] ");
+        if (!execInfo.isSuccess()) {
+            text.append("failed ");
+        }
+        for (QueryInfo queryInfo : queryInfoList) {
+            appendQuery(text, execInfo, queryInfo);
+        }
+        return text.toString();
+    }
+
+
+    /**
+     * Stop the writer. Lines still in the queue are lost.
+     */
+    @Override
+    public void destroy() {
+        writer.interrupt();
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Append the SQL and the parameters. Only the first set of parameters is shown for a batch.
+     *
+     * @param text
+     * @param execInfo
+     * @param queryInfo
+     */
+    private void appendQuery(StringBuilder text, ExecutionInfo execInfo, QueryInfo queryInfo) {
+        String sql = queryInfo.getQuery();
+        text.append(sql.trim().replaceAll("\\s+", " "));
+        if (execInfo.isBatch()) {
+            text.append(" [batch of ").append(execInfo.getBatchSize()).append("]");
+        }
+        List<List<ParameterSetOperation>> paramsList = queryInfo.getParametersList();
+        if (paramsList.isEmpty() || paramsList.get(0).isEmpty()) {
+            return;
+        }
+        Set<Integer> redacted = redactedParams(sql);
+        text.append(" ").append(paramsList.get(0).stream()
+            .map(param -> format(param, redacted))
+            .collect(Collectors.joining(", ", "[", "]")));
+    }
+
+
+    /**
+     * Format one parameter, masked if it's for a redacted column.
+     *
+     * @param param
+     * @param redacted
+     * @return
+     */
+    private static String format(ParameterSetOperation param, Set<Integer> redacted) {
+        Object[] args = param.getArgs();
+        if (args.length < 2) {
+            return "?";
+        }
+        if (args[0] instanceof Integer && redacted.contains(args[0])) {
+            return REDACTED;
+        }
+        if (ParameterSetOperation.isSetNullParameterOperation(param)) {
+            return "null";
+        }
+        Object value = args[1];
+        return (value instanceof Object[]) ? Arrays.toString((Object[]) value) : String.valueOf(value);
+    }
+
+
+    /**
+     * Find the parameter indexes (1-based) that are values for redacted columns, in an insert's
+     * column list or in "column = ?". Cached per SQL string.
+     *
+     * @param sql
+     * @return
+     */
+    private Set<Integer> redactedParams(String sql) {
+        if (redactedColumns.isEmpty()) {
+            return Set.of();
+        }
+        Set<Integer> indexes = redactedParams.get(sql);
+        if (indexes != null) {
+            return indexes;
+        }
+        indexes = new HashSet<>();
+        int param = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) != '?') {
+                continue;
+            }
+            param++;
+            Matcher matcher = COLUMN_EQUALS.matcher(sql.substring(Math.max(0, i - 64), i));
+            if (matcher.find() && isRedacted(matcher.group(1))) {
+                indexes.add(param);
+            }
+        }
+        addInsertParams(sql, indexes);
+        if (redactedParams.size() >= MAX_CACHED_SQL) {
+            redactedParams.clear();
+        }
+        redactedParams.put(sql, indexes);
+        return indexes;
+    }
+
+
+    /**
+     * For "INSERT INTO t (a, b) VALUES (?, ?)" or "... SELECT ?, ?", add the parameters in the
+     * value for each redacted column.
+     *
+     * @param sql
+     * @param indexes
+     */
+    private void addInsertParams(String sql, Set<Integer> indexes) {
+        Matcher matcher = INSERT_COLUMNS.matcher(sql);
+        if (!matcher.find()) {
+            return;
+        }
+        String[] columns = matcher.group(1).split(",");
+        int column = 0;
+        int depth = 0;
+        int param = 0;
+        for (int i = matcher.end(); i < sql.length() && column < columns.length && depth >= 0; i++) {
+            char c = sql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                column++;
+            } else if (c == '?') {
+                param++;
+                if (isRedacted(columns[column])) {
+                    indexes.add(param);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Check if a column's values are masked. Ignores case and quotes.
+     *
+     * @param column
+     * @return
+     */
+    private boolean isRedacted(String column) {
+        return redactedColumns.contains(column.trim().replace("\"", "").toLowerCase(Locale.ROOT));
+    }
+
+
+    /**
+     * Write queued lines until interrupted.
+     */
+    private void write() {
+        try {
+            while (true) {
+                Line line = queue.take();
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    LOGGER.warn("Dropped {} SQL log lines, the buffer was full", lost);
+                }
+                if (line.slow) {
+                    LOGGER.warn("Slow SQL {}", line.text);
+                } else {
+                    LOGGER.info("SQL {}", line.text);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * A formatted statement waiting to be written.
+     */
+    private static class Line {
+
+        private final boolean slow;
+        private final String text;
+
+
+        Line(boolean slow, String text) {
+            this.slow = slow;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Opt-in mode that runs Tomcat requests and async work (e.g. MVC async requests) on virtual
+ * threads instead of the fixed Tomcat pool. Needs Java 21+ at runtime, the build still targets
+ * Java 11 so the executor is looked up reflectively. Turn on with "app.virtual-threads.enabled".
+ */
+
+package com.example.firstmvn.other;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "app.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadsConfig {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(VirtualThreadsConfig.class);
+
+    private static final String FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+    private static final String UNSUPPORTED_ERR = "\"app.virtual-threads.enabled\" is set but " +
+        "virtual threads need Java 21 or newer, running on Java ";
+
+
+    /**
+     * One virtual thread per task, shared by Tomcat and the application task executor.
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService virtualThreadExecutor() {
+        Method factory;
+        try {
+            factory = Executors.class.getMethod(FACTORY_METHOD);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException(UNSUPPORTED_ERR + Runtime.version().feature());
+        }
+        try {
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            LOGGER.info("Running requests on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException ex) {
+            // Java 19/20 without --enable-preview
+            throw new IllegalStateException(UNSUPPORTED_ERR + Runtime.version().feature(), ex);
+        }
+    }
+
+
+    /**
+     * Hand Tomcat's request processing to the virtual thread executor. Tomcat's own thread
+     * settings ("server.tomcat.threads.*") no longer apply.
+     *
+     * @param virtualThreadExecutor
+     * @return
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadsProtocolHandlerCustomizer(
+        ExecutorService virtualThreadExecutor
+    ) {
+        return handler -> handler.setExecutor(virtualThreadExecutor);
+    }
+
+
+    /**
+     * Replaces Spring Boot's pooled "applicationTaskExecutor", which MVC async requests and
+     * @Async use.
+     *
+     * @param virtualThreadExecutor
+     * @return
+     */
+    @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    public AsyncTaskExecutor applicationTaskExecutor(ExecutorService virtualThreadExecutor) {
+        return new TaskExecutorAdapter(virtualThreadExecutor);
+    }
+}
@@ -7,9 +7,15 @@
 
 package com.example.firstmvn.repositories;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 import javax.transaction.Transactional;
 
+import com.example.firstmvn.dtos.UserDto;
 import com.example.firstmvn.entities.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -21,6 +27,23 @@ import org.springframework.stereotype.Repository;
 @Transactional
 public interface UserRepo extends JpaRepository<User, Long> {
 
+    /**
+     * Select the columns of a UserDto. Reads that only return users use this instead of loading
+     * entities, there's nothing for Hibernate to track or dirty check.
+     */
+    String DTO_SELECT = "SELECT new com.example.firstmvn.dtos.UserDto(" +
+        "u.id, u.email, u.name, u.created, u.version) FROM User AS u ";
+
+
+    /**
+     * Find one user by id.
+     * 
+     * @param id
+     * @return
+     */
+    @Query(DTO_SELECT + "WHERE u.id = :id")
+    Optional<UserDto> findDtoById(@Param("id") Long id);
+
 
     /**
      * Find by id or email.
@@ -29,7 +52,8 @@ public interface UserRepo extends JpaRepository<User, Long> {
      * @param email
      * @return
      */
-    User findByIdOrEmail(Long id, String email);
+    @Query(DTO_SELECT + "WHERE u.id = :id OR u.email = :email")
+    UserDto findByIdOrEmail(@Param("id") Long id, @Param("email") String email);
 
 
     /**
@@ -38,29 +62,106 @@ public interface UserRepo extends JpaRepository<User, Long> {
      * @param email
      * @return
      */
-    User findByEmail(String email);
-    
+    @Query(DTO_SELECT + "WHERE u.email = :email")
+    UserDto findByEmail(@Param("email") String email);
+
 
     /**
-     * Update one user.
+     * Fetch the first page of users ordered by id.
+     *
+     * @param pageable
+     * @return
+     */
+    @Query(DTO_SELECT + "ORDER BY u.id")
+    List<UserDto> findPage(Pageable pageable);
+
+
+    /**
+     * Fetch the page of users that comes after the given id. Seeks on the primary key instead
+     * of using an OFFSET so every page costs the same.
+     *
+     * @param id
+     * @param pageable
+     * @return
+     */
+    @Query(DTO_SELECT + "WHERE u.id > :id ORDER BY u.id")
+    List<UserDto> findPageAfter(@Param("id") Long id, Pageable pageable);
+
+
+    /**
+     * Insert one user in a single statement. Nothing is inserted if the id already persists or
+     * the email is taken (the unique constraint decides, so concurrent inserts can't both win).
      * 
      * @param id
      * @param email
      * @param name
      * @param pwdHash
+     * @return the new id or null if nothing was inserted
+     */
+    @Query(
+        value = "INSERT INTO main.users (email, name, pwdHash, created) " +
+            "SELECT :email, :name, :pwdHash, CURRENT_DATE " +
+            "WHERE NOT EXISTS (SELECT 1 FROM main.users WHERE id = :id) " +
+            "ON CONFLICT DO NOTHING " +
+            "RETURNING id",
+        nativeQuery = true
+    )
+    public Long insertOne(
+        @Param("id") Long id,
+        @Param("email") String email,
+        @Param("name") String name,
+        @Param("pwdHash") String pwdHash
+    );
+
+
+    /**
+     * Update one user and bump its version. Throws a DataIntegrityViolationException if the email
+     * is taken by another user.
+     * 
+     * @param id
+     * @param email
+     * @param name
+     * @param pwdHash
+     * @param version only update if the user is at this version, null for any version
+     * @return the number of rows updated, 0 if the id wasn't found or the version didn't match
      */
     @Modifying
     @Query(
         "UPDATE User AS a " + 
         "SET a.email = :email, " +
             "a.name = :name, " +
-            "a.pwdHash = :pwdHash " +
-        "WHERE a.id = :id"
+            "a.pwdHash = :pwdHash, " +
+            "a.version = a.version + 1 " +
+        "WHERE a.id = :id " +
+        "AND (:version IS NULL OR a.version = :version)"
     )
-    public void updateOne(
+    public int updateOne(
         @Param("id") Long id,
         @Param("email") String email,
         @Param("name") String name,
-        @Param("pwdHash") String pwdHash
+        @Param("pwdHash") String pwdHash,
+        @Param("version") Long version
     );
+
+
+    /**
+     * Delete one user without loading it first.
+     * 
+     * @param id
+     * @return the number of rows deleted, 0 if the id wasn't found
+     */
+    @Modifying
+    @Query("DELETE FROM User AS a WHERE a.id = :id")
+    public int deleteOne(@Param("id") Long id);
+
+
+    /**
+     * Delete every user in the list of ids in one statement.
+     * 
+     * @param ids
+     * @return the number of rows deleted
+     */
+    @Modifying
+    @Query("DELETE FROM User AS a WHERE a.id IN :ids")
+    public int deleteAllByIdIn(@Param("ids") Collection<Long> ids);
 }
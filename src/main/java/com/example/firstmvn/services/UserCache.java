@@ -0,0 +1,205 @@
+/**
+ * Size and TTL bounded cache of users by id. Not-found ids can also be cached for a short time.
+ * Hit, miss and eviction counts are published as "cache.*" metrics tagged "cache=users". A miss
+ * is loaded on the caller's thread outside of Caffeine's locks (a synchronous Caffeine cache
+ * loads inside ConcurrentHashMap.compute(), whose synchronized block would pin a virtual thread
+ * for the whole query). Concurrent misses on the same id wait for the first one's load.
+ */
+
+package com.example.firstmvn.services;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+
+@Component
+public class UserCache {
+
+    private static final String CACHE_NAME = "users";
+
+    private final AsyncCache<Long, Optional<UserDto>> cache;
+    private final boolean cacheNotFound;
+
+
+    /**
+     * Constructor()
+     *
+     * @param enabled
+     * @param maxSize
+     * @param ttl
+     * @param notFoundTtl 0 to not cache not-found ids
+     * @param meterRegistry
+     */
+    public UserCache(
+        @Value("${users.cache.enabled:true}") boolean enabled,
+        @Value("${users.cache.max-size:10000}") long maxSize,
+        @Value("${users.cache.ttl:30s}") Duration ttl,
+        @Value("${users.cache.not-found-ttl:0s}") Duration notFoundTtl,
+        MeterRegistry meterRegistry
+    ) {
+        this.cacheNotFound = !notFoundTtl.isZero();
+        if (!enabled) {
+            this.cache = null;
+            return;
+        }
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfter(new UserExpiry(ttl, notFoundTtl))
+            .recordStats()
+            .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+
+    /**
+     * Get a user from the cache, calling the loader on a miss. The loader must throw a
+     * NotFoundException if the id isn't found.
+     *
+     * @param id
+     * @param loader
+     * @return
+     */
+    public UserDto get(Long id, Function<Long, UserDto> loader) throws NotFoundException {
+        if (cache == null) {
+            return loader.apply(id);
+        }
+        // Only an empty future goes in under the lock, the query runs after
+        CompletableFuture<Optional<UserDto>> loading = new CompletableFuture<>();
+        CompletableFuture<Optional<UserDto>> cached = cache.get(id, (key, executor) -> loading);
+        Optional<UserDto> user;
+        if (cached == loading) {
+            try {
+                user = load(id, loader);
+            } catch (RuntimeException ex) {
+                // Caffeine drops failed futures, the next get() loads again
+                loading.completeExceptionally(ex);
+                throw ex;
+            }
+            loading.complete(user);
+        } else {
+            user = join(cached);
+        }
+        return user.orElseThrow(() -> new NotFoundException(UserDao.getIdNotFoundMsg(id)));
+    }
+
+
+    /**
+     * Remove a user from the cache. Call this after the write that changed the user has
+     * committed. An in-flight load of the same id is removed too, Caffeine doesn't put it back
+     * when it completes, so a load that read the old row can't be left behind.
+     *
+     * @param id
+     */
+    public void invalidate(Long id) {
+        if (cache != null && id != null) {
+            cache.synchronous().invalidate(id);
+        }
+    }
+
+
+    /**
+     * Remove every user from the cache.
+     */
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.synchronous().invalidateAll();
+        }
+    }
+
+
+    /**
+     * Load a user, turning not-found into an empty value if not-found ids are cached.
+     *
+     * @param id
+     * @param loader
+     * @return
+     */
+    private Optional<UserDto> load(Long id, Function<Long, UserDto> loader) {
+        try {
+            return Optional.of(loader.apply(id));
+        } catch (NotFoundException ex) {
+            if (!cacheNotFound) {
+                throw ex;
+            }
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * Wait for another caller's load of the same id, rethrowing its error.
+     *
+     * @param loading
+     * @return
+     */
+    private static Optional<UserDto> join(CompletableFuture<Optional<UserDto>> loading) {
+        try {
+            return loading.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Expire users after the ttl and not-found ids after the not-found ttl.
+     */
+    private static class UserExpiry implements Expiry<Long, Optional<UserDto>> {
+
+        private final long ttlNanos;
+        private final long notFoundTtlNanos;
+
+
+        UserExpiry(Duration ttl, Duration notFoundTtl) {
+            this.ttlNanos = ttl.toNanos();
+            this.notFoundTtlNanos = notFoundTtl.toNanos();
+        }
+
+
+        @Override
+        public long expireAfterCreate(Long id, Optional<UserDto> user, long currentTime) {
+            return user.isPresent() ? ttlNanos : notFoundTtlNanos;
+        }
+
+
+        @Override
+        public long expireAfterUpdate(
+            Long id,
+            Optional<UserDto> user,
+            long currentTime,
+            long currentDuration
+        ) {
+            return expireAfterCreate(id, user, currentTime);
+        }
+
+
+        @Override
+        public long expireAfterRead(
+            Long id,
+            Optional<UserDto> user,
+            long currentTime,
+            long currentDuration
+        ) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Evict users changed by any node from this node's cache. The users table has a trigger that
+ * sends the changed ids on the "user_changes" channel when a write commits (see
+ * V3__users_notify.sql). This listens on a dedicated connection and evicts the ids in bursts.
+ * With read replicas on, a change also keeps reads on the primary for a while (see ReplicaRouter).
+ */
+
+package com.example.firstmvn.services;
+
+import com.example.firstmvn.other.ReplicaRouter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+
+// Nothing injects it, it has to start by itself even with lazy initialization
+@Component
+@Lazy(false)
+public class UserChangeListener {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(UserChangeListener.class);
+
+    public static final String CHANNEL = "user_changes";
+    public static final String ALL_USERS = "*";
+
+    private static final int POLL_MS = 1000;
+    private static final int MAX_IDS_PER_FLUSH = 1000;
+    private static final Duration KEEPALIVE = Duration.ofSeconds(10);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final UserCache userCache;
+    private final DataSourceProperties dataSourceProperties;
+    private final ObjectProvider<ReplicaRouter> replicaRouter;
+    private final boolean enabled;
+    private final Duration coalesce;
+
+    private volatile boolean running;
+    private Thread thread;
+
+
+    /**
+     * Constructor()
+     *
+     * @param userCache
+     * @param dataSourceProperties
+     * @param replicaRouter
+     * @param enabled
+     * @param coalesce how long to keep collecting ids after the first one arrives
+     */
+    public UserChangeListener(
+        UserCache userCache,
+        DataSourceProperties dataSourceProperties,
+        ObjectProvider<ReplicaRouter> replicaRouter,
+        @Value("${users.cache.notify.enabled:true}") boolean enabled,
+        @Value("${users.cache.notify.coalesce:50ms}") Duration coalesce
+    ) {
+        this.userCache = userCache;
+        this.dataSourceProperties = dataSourceProperties;
+        this.replicaRouter = replicaRouter;
+        this.enabled = enabled;
+        this.coalesce = coalesce;
+    }
+
+
+    /**
+     * Start listening in the background.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "user-change-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stop listening.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(POLL_MS * 2);
+        }
+    }
+
+
+    /**
+     * Keep a connection listening, reconnecting with a backoff when it's lost or handling a
+     * notification fails.
+     */
+    private void run() {
+        long backoffMs = 100;
+        while (running) {
+            try (Connection con = connect()) {
+                try (Statement statement = con.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                // Anything could have changed while we weren't listening
+                userCache.invalidateAll();
+                backoffMs = 100;
+                listen(con);
+            } catch (SQLException ex) {
+                if (running) {
+                    LOGGER.warn("Lost connection for user change notifications, retrying in {}ms: {}",
+                        backoffMs, ex.getMessage());
+                }
+            } catch (RuntimeException ex) {
+                // E.g. a payload that isn't an id. The reconnect evicts everything, so nothing
+                // it carried stays cached.
+                if (running) {
+                    LOGGER.error("Couldn't handle user change notifications, reconnecting in {}ms",
+                        backoffMs, ex);
+                }
+            }
+            if (!running) {
+                return;
+            }
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF.toMillis());
+        }
+    }
+
+
+    /**
+     * Wait for notifications and evict the ids they carry. Once one arrives, keep collecting for
+     * the coalesce window so a burst of writes costs one pass over the cache.
+     *
+     * @param con
+     * @throws SQLException
+     */
+    private void listen(Connection con) throws SQLException {
+        PGConnection pgCon = con.unwrap(PGConnection.class);
+        long lastActivity = System.nanoTime();
+        while (running) {
+            PGNotification[] notifications = pgCon.getNotifications(POLL_MS);
+            if (notifications == null || notifications.length == 0) {
+                // Make sure the connection hasn't silently died
+                if (System.nanoTime() - lastActivity > KEEPALIVE.toNanos()) {
+                    if (!con.isValid(POLL_MS / 1000)) {
+                        throw new SQLException("Listener connection is no longer valid");
+                    }
+                    lastActivity = System.nanoTime();
+                }
+                continue;
+            }
+            Set<Long> ids = new HashSet<>();
+            boolean all = collect(notifications, ids);
+            long deadline = System.nanoTime() + coalesce.toNanos();
+            long remainingMs;
+            while (!all && (remainingMs = (deadline - System.nanoTime()) / 1_000_000) > 0) {
+                all = collect(pgCon.getNotifications((int) remainingMs), ids);
+            }
+            evict(ids, all);
+            lastActivity = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * Add the ids from the notifications to the set. Returns true if everything should be
+     * evicted instead.
+     *
+     * @param notifications
+     * @param ids
+     * @return
+     */
+    private static boolean collect(PGNotification[] notifications, Set<Long> ids) {
+        if (notifications == null) {
+            return false;
+        }
+        for (PGNotification notification : notifications) {
+            String payload = notification.getParameter();
+            if (ALL_USERS.equals(payload)) {
+                return true;
+            }
+            for (String id : payload.split(",")) {
+                ids.add(Long.valueOf(id));
+            }
+        }
+        return ids.size() > MAX_IDS_PER_FLUSH;
+    }
+
+
+    /**
+     * Evict the collected ids, or everything. Replicas may not have the change yet, so reads
+     * go to the primary first or a cache miss could load the old row again.
+     *
+     * @param ids
+     * @param all
+     */
+    private void evict(Set<Long> ids, boolean all) {
+        replicaRouter.ifAvailable(ReplicaRouter::recordWrite);
+        if (all) {
+            userCache.invalidateAll();
+            return;
+        }
+        for (Long id : ids) {
+            userCache.invalidate(id);
+        }
+    }
+
+
+    /**
+     * Open a connection of our own, outside the pool, using the same settings as the datasource.
+     *
+     * @return
+     * @throws SQLException
+     */
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(
+            dataSourceProperties.determineUrl(),
+            dataSourceProperties.determineUsername(),
+            dataSourceProperties.determinePassword()
+        );
+    }
+}
@@ -6,13 +6,22 @@
 
 package com.example.firstmvn.services;
 
+import com.example.firstmvn.daos.UserBatchDao;
 import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.daos.UserInsertCoalescer;
+import com.example.firstmvn.dtos.UserBatchOp;
+import com.example.firstmvn.dtos.UserBatchResult;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
 import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
 
 import java.util.List;
-import javax.persistence.EntityExistsException;
-import javax.persistence.EntityNotFoundException;
+import java.util.function.Consumer;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 
 
@@ -20,47 +29,92 @@ import org.springframework.stereotype.Service;
 public class UserService {
     
     private final UserDao userDao;
+    private final UserBatchDao userBatchDao;
+    private final UserCache userCache;
+    private final UserInsertCoalescer insertCoalescer;
 
 
     /**
      * Constructor()
      * 
      * @param userDao
+     * @param userBatchDao
+     * @param userCache
+     * @param insertCoalescer only there with "users.insert-coalescing.enabled"
      */
-    public UserService(UserDao userDao) {
+    public UserService(
+        UserDao userDao,
+        UserBatchDao userBatchDao,
+        UserCache userCache,
+        ObjectProvider<UserInsertCoalescer> insertCoalescer
+    ) {
         this.userDao = userDao;
+        this.userBatchDao = userBatchDao;
+        this.userCache = userCache;
+        this.insertCoalescer = insertCoalescer.getIfAvailable();
     }
     
 
     /**
-     * Get all users.
+     * Get one page of users.
      * 
+     * @param limit
+     * @param after
      * @return
      */
-    public List<User> getAll() {
-        return userDao.getAll();
+    public UserPage getAll(int limit, Long after) {
+        return userDao.getPage(limit, after);
     }
 
 
     /**
-     * Get one user by id.
+     * Search users by name or email.
+     * 
+     * @param q
+     * @param limit
+     * @param offset
+     * @return
+     */
+    public UserPage search(String q, int limit, int offset) {
+        return userDao.search(q, limit, offset);
+    }
+
+
+    /**
+     * Pass every user to the action one at a time.
+     * 
+     * @param action
+     */
+    public void forEach(Consumer<UserDto> action) {
+        userDao.forEach(action);
+    }
+
+
+    /**
+     * Get one user by id, from the cache if it's there.
      * 
      * @param id
      * @return
      */
-    public User getOne(Long id) throws EntityNotFoundException {
-        return userDao.getOne(id);
+    public UserDto getOne(Long id) throws NotFoundException {
+        return userCache.get(id, userDao::getOne);
     }
 
 
     /**
-     * Add one user.
+     * Add one user, in a shared insert with concurrent callers if coalescing is on.
      * 
      * @param user
-     * @throws EntityExistsException
+     * @throws ConflictException
      */
-    public void addOne(User user) throws EntityExistsException {
-        userDao.addOne(user);
+    public void addOne(User user) throws ConflictException {
+        if (insertCoalescer != null) {
+            insertCoalescer.addOne(user);
+        } else {
+            userDao.addOne(user);
+        }
+        // The new id may have been cached as not-found
+        userCache.invalidate(user.getId());
     }
 
 
@@ -68,9 +122,12 @@ public class UserService {
      * Update one user.
      * 
      * @param user
+     * @param version the version the client last saw, null to update whatever the version
+     * @throws PreconditionFailedException if the user is no longer at that version
      */
-    public void updateOne(User user) throws RuntimeException {
-        userDao.updateOne(user);
+    public void updateOne(User user, Long version) throws NotFoundException, ConflictException {
+        userDao.updateOne(user, version);
+        userCache.invalidate(user.getId());
     }
 
 
@@ -79,7 +136,24 @@ public class UserService {
      * 
      * @param id
      */
-    public void deleteOne(Long id) throws EntityNotFoundException {
+    public void deleteOne(Long id) throws NotFoundException {
         userDao.deleteOne(id);
+        userCache.invalidate(id);
+    }
+
+
+    /**
+     * Run a batch of creates, updates and deletes.
+     * 
+     * @param ops
+     * @param atomic
+     * @return
+     */
+    public List<UserBatchResult> batch(List<UserBatchOp> ops, boolean atomic) {
+        List<UserBatchResult> results = userBatchDao.run(ops, atomic);
+        for (UserBatchResult result : results) {
+            userCache.invalidate(result.getId());
+        }
+        return results;
     }
 }
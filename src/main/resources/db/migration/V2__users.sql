@@ -0,0 +1,13 @@
+-- Oct 18, 2026
+
+-- Same table Hibernate generates for the User entity. The unique constraint keeps Hibernate's
+-- generated name so "ddl-auto = update" doesn't add a second one.
+CREATE TABLE IF NOT EXISTS main.users (
+    id bigserial NOT NULL,
+    created date,
+    email varchar(255),
+    name varchar(255),
+    pwdHash varchar(255),
+    CONSTRAINT users_pkey PRIMARY KEY (id),
+    CONSTRAINT uk_6dotkott2kjsp8vw4d0m25fb7 UNIQUE (email)
+);
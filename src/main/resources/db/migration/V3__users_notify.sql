@@ -0,0 +1,33 @@
+-- Oct 18, 2026
+
+-- Publish the ids of changed users on the "user_changes" channel so every node can evict them
+-- from its cache. Fires once per statement and is delivered when the transaction commits. Big
+-- statements send "*" instead of a list of ids (NOTIFY payloads are limited to 8000 bytes).
+CREATE OR REPLACE FUNCTION main.notify_user_changes() RETURNS trigger AS $$
+DECLARE
+    num_rows bigint;
+    ids text;
+BEGIN
+    SELECT count(*), string_agg(id::text, ',') INTO num_rows, ids
+    FROM (SELECT id FROM changed_rows LIMIT 201) AS c;
+    IF num_rows > 200 THEN
+        PERFORM pg_notify('user_changes', '*');
+    ELSIF num_rows > 0 THEN
+        PERFORM pg_notify('user_changes', ids);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Transition tables only work with one event per trigger
+CREATE TRIGGER users_notify_insert AFTER INSERT ON main.users
+    REFERENCING NEW TABLE AS changed_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION main.notify_user_changes();
+
+CREATE TRIGGER users_notify_update AFTER UPDATE ON main.users
+    REFERENCING NEW TABLE AS changed_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION main.notify_user_changes();
+
+CREATE TRIGGER users_notify_delete AFTER DELETE ON main.users
+    REFERENCING OLD TABLE AS changed_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION main.notify_user_changes();
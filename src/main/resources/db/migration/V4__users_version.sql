@@ -0,0 +1,5 @@
+-- Oct 18, 2026
+
+-- Row version for optimistic locking and ETags. Every update bumps it, including the native and
+-- batch ones that don't go through Hibernate.
+ALTER TABLE main.users ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT 0;
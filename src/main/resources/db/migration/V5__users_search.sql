@@ -0,0 +1,11 @@
+-- Oct 18, 2026
+
+-- Indexes for GET "/api/users/search", case-insensitive so on lower(). The text_pattern_ops btrees
+-- serve prefix matches (lower(name) LIKE 'ab%') in any collation, the trigram GINs serve
+-- substring matches (lower(name) LIKE '%abc%', 3 characters or more).
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX IF NOT EXISTS users_name_prefix ON main.users (lower(name) text_pattern_ops);
+CREATE INDEX IF NOT EXISTS users_email_prefix ON main.users (lower(email) text_pattern_ops);
+CREATE INDEX IF NOT EXISTS users_name_trgm ON main.users USING gin (lower(name) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS users_email_trgm ON main.users USING gin (lower(email) gin_trgm_ops);
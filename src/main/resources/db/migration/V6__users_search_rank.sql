@@ -0,0 +1,9 @@
+-- Oct 18, 2026
+
+-- Ranks substring matches for GET "/api/users/search" when there are too many to rank them all.
+-- A GiST trigram index can hand rows over nearest first (ORDER BY :q <<-> key LIMIT n) instead of
+-- scoring every match. It's on name and email together so one scan ranks both, and on its own
+-- expression so the GIN indexes in V5 keep serving the filters (they're much faster for rare
+-- terms).
+CREATE INDEX IF NOT EXISTS users_search_rank ON main.users
+    USING gist ((coalesce(lower(name), '') || ' ' || coalesce(lower(email), '')) gist_trgm_ops);
@@ -0,0 +1,142 @@
+/**
+ * Handle errors from the reactive controller the same way ControllerAdvisor does for the
+ * blocking one. Domain exceptions map to their status codes and are logged without a trace, at
+ * most "app.errors.log-per-second" times a second. WebFlux's own errors (bad input, wrong method
+ * or content type) keep their status and headers. The routing ones are raised before there's a
+ * controller to advise, so this is also a WebExceptionHandler, ahead of Spring Boot's. Anything
+ * else is a bug, it gets a 500 and is logged with its stack trace.
+ */
+
+package com.example.firstmvn.reactive;
+
+import com.example.firstmvn.exceptions.BadRequestException;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
+import com.example.firstmvn.other.ExpectedErrorLog;
+
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebExceptionHandler;
+
+import reactor.core.publisher.Mono;
+
+
+@ControllerAdvice
+@Order(-2)
+public class ReactiveControllerAdvisor implements WebExceptionHandler {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ReactiveControllerAdvisor.class);
+
+    private static final String INTERNAL_ERR_MSG = "Internal server error";
+
+    private final ExpectedErrorLog expectedErrorLog;
+
+
+    /**
+     * Constructor()
+     *
+     * @param logPerSecond
+     */
+    public ReactiveControllerAdvisor(@Value("${app.errors.log-per-second:10}") int logPerSecond) {
+        this.expectedErrorLog = new ExpectedErrorLog(LOGGER, logPerSecond);
+    }
+
+
+    @ExceptionHandler(NotFoundException.class)
+    public ResponseEntity<Object> handleNotFound(NotFoundException ex) {
+        return expected(HttpStatus.NOT_FOUND, ex);
+    }
+
+
+    @ExceptionHandler(ConflictException.class)
+    public ResponseEntity<Object> handleConflict(ConflictException ex) {
+        return expected(HttpStatus.CONFLICT, ex);
+    }
+
+
+    @ExceptionHandler(PreconditionFailedException.class)
+    public ResponseEntity<Object> handlePreconditionFailed(PreconditionFailedException ex) {
+        return expected(HttpStatus.PRECONDITION_FAILED, ex);
+    }
+
+
+    @ExceptionHandler(BadRequestException.class)
+    public ResponseEntity<Object> handleBadRequest(BadRequestException ex) {
+        return expected(HttpStatus.BAD_REQUEST, ex);
+    }
+
+
+    /**
+     * WebFlux's errors, with the status and headers (e.g. "Allow" on a 405) it picked. Only the
+     * 5xx ones are bugs.
+     */
+    @ExceptionHandler(ResponseStatusException.class)
+    public ResponseEntity<Object> handleResponseStatus(ResponseStatusException ex) {
+        if (ex.getStatus().is5xxServerError()) {
+            return handleUnexpected(ex);
+        }
+        expectedErrorLog.log(ex.getRawStatusCode(), ex);
+        return ResponseEntity.status(ex.getStatus())
+            .headers(ex.getResponseHeaders())
+            .body(ex.getMessage());
+    }
+
+
+    @ExceptionHandler(Exception.class)
+    public ResponseEntity<Object> handleUnexpected(Exception ex) {
+        LOGGER.error(ex.getMessage(), ex);
+        return new ResponseEntity<>(INTERNAL_ERR_MSG, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+
+    /**
+     * WebFlux's errors from before a controller was picked (no route for the method, content
+     * type or accept header). The rest go on to Spring Boot's handler.
+     */
+    @Override
+    public Mono<Void> handle(ServerWebExchange exchange, Throwable ex) {
+        ServerHttpResponse response = exchange.getResponse();
+        if (!(ex instanceof ResponseStatusException) || response.isCommitted()) {
+            return Mono.error(ex);
+        }
+        ResponseEntity<Object> resp = handleResponseStatus((ResponseStatusException) ex);
+        response.setStatusCode(resp.getStatusCode());
+        response.getHeaders().addAll(resp.getHeaders());
+        response.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+        DataBuffer body = response.bufferFactory()
+            .wrap(String.valueOf(resp.getBody()).getBytes(StandardCharsets.UTF_8));
+        return response.writeWith(Mono.just(body));
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Respond with the message and log it.
+     *
+     * @param status
+     * @param ex
+     * @return
+     */
+    private ResponseEntity<Object> expected(HttpStatus status, Exception ex) {
+        expectedErrorLog.log(status.value(), ex);
+        return new ResponseEntity<>(ex.getMessage(), status);
+    }
+}
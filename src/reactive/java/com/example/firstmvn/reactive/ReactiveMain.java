@@ -0,0 +1,53 @@
+/**
+ * Non-blocking version of the users API, "/api/v2/users" on WebFlux (Netty) and R2DBC. It's a
+ * separate app from Main against the same "main.users" table, so both can run side by side.
+ * Settings are in "application-reactive.properties". Only built with the "reactive" Maven profile.
+ */
+
+package com.example.firstmvn.reactive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+
+@SpringBootApplication(exclude = {DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class})
+public class ReactiveMain {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ReactiveMain.class);
+
+    public static final String PROFILE = "reactive";
+
+
+    /**
+     * Main()
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        // Start server
+        ConfigurableApplicationContext cac = builder().run(args);
+        // Print out the host:port
+        String port = cac.getEnvironment().getProperty("server.port");
+        LOGGER.info("Spring Boot reactive server started on localhost:" + port);
+    }
+
+
+    /**
+     * Reactive web app with the "reactive" profile. Both web stacks are on the classpath, so
+     * the type has to be set or Spring Boot picks servlet.
+     *
+     * @return
+     */
+    public static SpringApplicationBuilder builder() {
+        return new SpringApplicationBuilder(ReactiveMain.class)
+            .web(WebApplicationType.REACTIVE)
+            .profiles(PROFILE);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Handle non-blocking Rest requests for users. Same contract as UserController's CRUD routes,
+ * reads return UserDto so "pwdHash" never leaves the server.
+ */
+
+package com.example.firstmvn.reactive;
+
+import com.example.firstmvn.controllers.UserController;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.entities.User;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+
+@RestController
+@RequestMapping("/api/v2/users")
+public class ReactiveUserController {
+
+    private final ReactiveUserDao userDao;
+
+
+    /**
+     * Constructor()
+     *
+     * @param userDao
+     */
+    public ReactiveUserController(ReactiveUserDao userDao) {
+        this.userDao = userDao;
+    }
+
+
+    /**
+     * Stream all users ordered by id. Written as a JSON array, or one user per line when the
+     * client accepts "application/x-ndjson".
+     *
+     * @return
+     */
+    @GetMapping(value = "", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public Flux<UserDto> getAll() {
+        return userDao.getAll();
+    }
+
+
+    /**
+     * Find one user by id.
+     *
+     * @param id
+     * @return
+     */
+    @GetMapping("{id}")
+    public Mono<UserDto> getOne(@PathVariable Long id) {
+        return userDao.getOne(id);
+    }
+
+
+    /**
+     * Add a user.
+     *
+     * @param user
+     * @return
+     */
+    @PostMapping("")
+    public Mono<String> addOne(@RequestBody User user) {
+        return userDao.addOne(user).thenReturn(UserController.SUCCESSFUL_POST_MSG);
+    }
+
+
+    /**
+     * Update a user. With an "If-Match" ETag (the user's version in quotes) the update only
+     * happens if nobody else updated the user since, otherwise it's a 412.
+     *
+     * @param user
+     * @param ifMatch
+     * @return
+     */
+    @PutMapping("")
+    public Mono<String> updateOne(
+        @RequestBody User user,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch
+    ) {
+        Long version = UserController.getIfMatchVersion(ifMatch);
+        return userDao.updateOne(user, version).thenReturn(UserController.SUCCESSFUL_UPDATE_MSG);
+    }
+
+
+    /**
+     * Delete a user by id.
+     *
+     * @param id
+     * @return
+     */
+    @DeleteMapping("/{id}")
+    public Mono<String> deleteOne(@PathVariable Long id) {
+        return userDao.deleteOne(id).thenReturn(UserController.SUCCESSFUL_DELETE_MSG);
+    }
+}
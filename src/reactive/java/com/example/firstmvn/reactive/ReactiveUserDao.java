@@ -0,0 +1,278 @@
+/**
+ * Non-blocking data access for users through R2DBC. Same statements and errors as UserDao, so
+ * "/api/v2/users" behaves like "/api/users".
+ */
+
+package com.example.firstmvn.reactive;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.BadRequestException;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+import io.r2dbc.postgresql.api.ErrorDetails;
+import io.r2dbc.postgresql.api.PostgresqlException;
+import io.r2dbc.spi.Row;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.DatabaseClient.GenericExecuteSpec;
+import org.springframework.stereotype.Repository;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+
+@Repository
+public class ReactiveUserDao {
+
+    // Same columns as UserDto, "pwdHash" is never read back
+    private static final String COLUMNS = "id, email, name, created, version";
+    private static final String SELECT_ALL_SQL = "SELECT " + COLUMNS + " FROM main.users ORDER BY id";
+    private static final String SELECT_ONE_SQL = "SELECT " + COLUMNS + " FROM main.users WHERE id = :id";
+    private static final String INSERT_SQL = "INSERT INTO main.users (email, name, pwdHash, created) " +
+        "SELECT :email, :name, :pwdHash, CURRENT_DATE " +
+        "WHERE NOT EXISTS (SELECT 1 FROM main.users WHERE id = :id) " +
+        "ON CONFLICT DO NOTHING " +
+        "RETURNING id";
+    private static final String UPDATE_SQL = "UPDATE main.users SET email = :email, name = :name, " +
+        "pwdHash = :pwdHash, version = version + 1 WHERE id = :id AND (:version IS NULL OR version = :version)";
+    private static final String EXISTS_SQL = "SELECT 1 FROM main.users WHERE id = :id";
+    private static final String DELETE_SQL = "DELETE FROM main.users WHERE id = :id";
+    // SQLSTATE classes of values the table rejects, e.g. too long or breaking a constraint
+    private static final String DATA_EXCEPTION = "22";
+    private static final String INTEGRITY_VIOLATION = "23";
+
+    private final DatabaseClient databaseClient;
+    private final int fetchSize;
+
+
+    /**
+     * Constructor()
+     *
+     * @param databaseClient
+     * @param fetchSize rows fetched per round trip when streaming all users
+     */
+    public ReactiveUserDao(
+        DatabaseClient databaseClient,
+        @Value("${users.export.fetch-size:1000}") int fetchSize
+    ) {
+        this.databaseClient = databaseClient;
+        this.fetchSize = fetchSize;
+    }
+
+
+    /**
+     * Stream all users ordered by id. Rows are fetched in chunks as the subscriber asks for
+     * them, so the table is never held in memory.
+     *
+     * @return
+     */
+    public Flux<UserDto> getAll() {
+        return databaseClient.sql(SELECT_ALL_SQL)
+            .filter(statement -> statement.fetchSize(fetchSize))
+            .map(ReactiveUserDao::toDto)
+            .all();
+    }
+
+
+    /**
+     * Find one user by id.
+     *
+     * @param id
+     * @return
+     */
+    public Mono<UserDto> getOne(Long id) {
+        return databaseClient.sql(SELECT_ONE_SQL)
+            .bind("id", id)
+            .map(ReactiveUserDao::toDto)
+            .one()
+            .switchIfEmpty(Mono.error(() -> new NotFoundException(UserDao.getIdNotFoundMsg(id))));
+    }
+
+
+    /**
+     * Add one user in a single statement. Sets the generated id on the user.
+     *
+     * @param user
+     * @return
+     */
+    public Mono<User> addOne(User user) {
+        GenericExecuteSpec spec = bindUser(databaseClient.sql(INSERT_SQL), user);
+        return spec.map(row -> row.get("id", Long.class))
+            .one()
+            .onErrorMap(DataAccessException.class, ex -> mapWriteError(ex, user))
+            .switchIfEmpty(Mono.error(() -> {
+                String msg = UserDao.getAlreadyPersistsMsg(user.getId(), user.getEmail());
+                return new ConflictException(msg);
+            }))
+            .map(id -> {
+                user.setId(id);
+                return user;
+            });
+    }
+
+
+    /**
+     * Update one user by id in a single statement.
+     *
+     * @param user
+     * @return
+     */
+    public Mono<Void> updateOne(User user) {
+        return updateOne(user, null);
+    }
+
+
+    /**
+     * Update one user by id in a single statement, if it's still at the version the client last
+     * saw. Only a failed update checks whether the id exists, to tell not-found from a stale
+     * version, like UserDao.updateOne().
+     *
+     * @param user
+     * @param version null to update whatever the version
+     * @return
+     */
+    public Mono<Void> updateOne(User user, Long version) {
+        GenericExecuteSpec spec = bindUser(databaseClient.sql(UPDATE_SQL), user);
+        return bind(spec, "version", version, Long.class)
+            .fetch()
+            .rowsUpdated()
+            .onErrorMap(DataAccessException.class, ex -> mapWriteError(ex, user))
+            .flatMap(count -> (count == 0 && version != null)
+                ? checkVersion(user.getId(), version)
+                : checkFound(count, user.getId()));
+    }
+
+
+    /**
+     * Delete one user by id.
+     *
+     * @param id
+     * @return
+     */
+    public Mono<Void> deleteOne(Long id) {
+        return databaseClient.sql(DELETE_SQL)
+            .bind("id", id)
+            .fetch()
+            .rowsUpdated()
+            .flatMap(count -> checkFound(count, id));
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Bind the user's fields, nulls included.
+     *
+     * @param spec
+     * @param user
+     * @return
+     */
+    private static GenericExecuteSpec bindUser(GenericExecuteSpec spec, User user) {
+        spec = bind(spec, "id", user.getId(), Long.class);
+        spec = bind(spec, "email", user.getEmail(), String.class);
+        spec = bind(spec, "name", user.getName(), String.class);
+        return bind(spec, "pwdHash", user.getPwdHash(), String.class);
+    }
+
+
+    /**
+     * Bind a value which might be null. R2DBC needs the type to bind a null.
+     *
+     * @param spec
+     * @param name
+     * @param value
+     * @param type
+     * @return
+     */
+    private static GenericExecuteSpec bind(GenericExecuteSpec spec, String name, Object value, Class<?> type) {
+        return (value == null) ? spec.bindNull(name, type) : spec.bind(name, value);
+    }
+
+
+    /**
+     * Map a rejected write to UserDao's error for it. A taken email is a conflict. A value the
+     * table rejects (a data exception or another constraint, which R2DBC translates as bad
+     * grammar or an integrity violation) is a bad request. Anything else is left as it is.
+     *
+     * @param ex
+     * @param user
+     * @return
+     */
+    private static Throwable mapWriteError(DataAccessException ex, User user) {
+        if (!(ex.getCause() instanceof PostgresqlException)) {
+            return ex;
+        }
+        ErrorDetails err = ((PostgresqlException) ex.getCause()).getErrorDetails();
+        if (UserDao.isEmailTaken(err.getCode(), err.getConstraintName().orElse(null))) {
+            return new ConflictException(UserDao.getEmailAlreadyTakenMsg(user.getEmail()));
+        }
+        if (err.getCode().startsWith(DATA_EXCEPTION) || err.getCode().startsWith(INTEGRITY_VIOLATION)) {
+            return new BadRequestException(UserDao.getInvalidUserMsg());
+        }
+        return ex;
+    }
+
+
+    /**
+     * Error if nothing was updated or deleted.
+     *
+     * @param count
+     * @param id
+     * @return
+     */
+    private static Mono<Void> checkFound(int count, Long id) {
+        if (count == 0) {
+            return Mono.error(new NotFoundException(UserDao.getIdNotFoundMsg(id)));
+        }
+        return Mono.empty();
+    }
+
+
+    /**
+     * Error for an update that didn't match its version: stale if the user is still there,
+     * otherwise not found.
+     *
+     * @param id
+     * @param version
+     * @return
+     */
+    private Mono<Void> checkVersion(Long id, Long version) {
+        return databaseClient.sql(EXISTS_SQL)
+            .bind("id", id)
+            .fetch()
+            .first()
+            .hasElement()
+            .flatMap(exists -> Mono.error(exists
+                ? new PreconditionFailedException(UserDao.getVersionChangedMsg(id, version))
+                : new NotFoundException(UserDao.getIdNotFoundMsg(id))));
+    }
+
+
+    /**
+     * Map a row to what the read endpoints return.
+     *
+     * @param row
+     * @return
+     */
+    private static UserDto toDto(Row row) {
+        LocalDate created = row.get("created", LocalDate.class);
+        return new UserDto(
+            row.get("id", Long.class),
+            row.get("email", String.class),
+            row.get("name", String.class),
+            (created == null) ? null : Date.valueOf(created),
+            row.get("version", Long.class)
+        );
+    }
+}
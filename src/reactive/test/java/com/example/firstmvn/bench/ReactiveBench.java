@@ -0,0 +1,126 @@
+/**
+ * Compare throughput and latency of GET "/api/users/{id}" (Tomcat, JPA) against GET
+ * "/api/v2/users/{id}" (Netty, R2DBC) at 1k to 10k concurrent connections. Both apps run at
+ * once against the same table, with the v1 cache off so every request goes to the database.
+ * Both pools have 10 connections. The client runs in the same JVM, so it needs a bigger heap
+ * and "ulimit -n" above 2x the connections. Only runs with "-Dbench=true":
+ *
+ *   mvn -P reactive test -Dbench=true -Dbench.db.name=practice_bench -Dtest.heap=2g -Dtest=ReactiveBench
+ */
+
+package com.example.firstmvn.bench;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.reactive.ReactiveMain;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+public class ReactiveBench {
+
+    private static final List<Integer> CONNECTIONS = List.of(1_000, 2_000, 5_000, 10_000);
+    private static final int USERS = 1_000;
+    private static final int CLIENT_THREADS = 4;
+    private static final Duration WARMUP = Duration.ofSeconds(5);
+    private static final Duration DURATION = Duration.ofSeconds(10);
+
+
+    /**
+     * Load each stack at every connection count, one stack at a time, and print the results.
+     */
+    @Test
+    void compareStacks() throws Exception {
+        ConfigurableApplicationContext blocking = startBlocking();
+        ConfigurableApplicationContext reactive = startReactive();
+        JdbcTemplate jdbcTemplate = blocking.getBean(JdbcTemplate.class);
+        BenchDatabase.check(jdbcTemplate);
+        try (HttpLoadGenerator load = new HttpLoadGenerator(CLIENT_THREADS)) {
+            long firstId = HttpLoadGenerator.seedUsers(jdbcTemplate, USERS);
+            URI[] v1 = HttpLoadGenerator.uris(url(blocking, "/api/users/"), firstId, USERS);
+            URI[] v2 = HttpLoadGenerator.uris(url(reactive, "/api/v2/users/"), firstId, USERS);
+            load.run(v1, CONNECTIONS.get(0), WARMUP, new AtomicLong());
+            load.run(v2, CONNECTIONS.get(0), WARMUP, new AtomicLong());
+            for (int connections : CONNECTIONS) {
+                run(load, "v1", v1, connections);
+                run(load, "v2", v2, connections);
+            }
+        } finally {
+            BenchDatabase.deleteUsers(jdbcTemplate);
+            reactive.close();
+            blocking.close();
+        }
+    }
+
+
+    /**
+     * Load one stack and print the result.
+     *
+     * @param load
+     * @param name
+     * @param uris
+     * @param connections
+     */
+    private static void run(HttpLoadGenerator load, String name, URI[] uris, int connections)
+        throws InterruptedException {
+        AtomicLong errors = new AtomicLong();
+        Histogram histogram = load.run(uris, connections, DURATION, errors);
+        HttpLoadGenerator.print(name, connections, histogram, errors.get());
+    }
+
+
+    /**
+     * Base url of a route on a node.
+     *
+     * @param node
+     * @param path
+     * @return
+     */
+    private static String url(ConfigurableApplicationContext node, String path) {
+        return "http://localhost:" + HttpLoadGenerator.port(node) + path;
+    }
+
+
+    /**
+     * Start the blocking app (v1) on a random port.
+     *
+     * @return
+     */
+    private static ConfigurableApplicationContext startBlocking() {
+        return new SpringApplicationBuilder(Main.class)
+            // Args rather than properties(), which application.properties would override
+            .run(
+                "--server.port=0",
+                "--spring.devtools.restart.enabled=false",
+                BenchDatabase.getArg(),
+                "--spring.jpa.show-sql=false",
+                "--users.cache.enabled=false",
+                "--users.cache.notify.enabled=false",
+                "--users.email-filter.enabled=false",
+                "--server.tomcat.max-connections=20000",
+                "--server.tomcat.accept-count=10000"
+            );
+    }
+
+
+    /**
+     * Start the reactive app (v2) on a random port.
+     *
+     * @return
+     */
+    private static ConfigurableApplicationContext startReactive() {
+        return ReactiveMain.builder()
+            .properties("server.port=0", "spring.devtools.restart.enabled=false")
+            .run(BenchDatabase.getArg());
+    }
+}
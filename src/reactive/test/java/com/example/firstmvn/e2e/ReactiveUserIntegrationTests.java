@@ -0,0 +1,348 @@
+/**
+ * Integration tests for the reactive user routes ("/api/v2/users"). Checks they keep the
+ * contract and errors of "/api/users".
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.util.List;
+
+import com.example.firstmvn.controllers.UserController;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.reactive.ReactiveMain;
+import com.example.firstmvn.reactive.ReactiveUserDao;
+
+import static com.example.firstmvn.daos.UserDao.getAlreadyPersistsMsg;
+import static com.example.firstmvn.daos.UserDao.getEmailAlreadyTakenMsg;
+import static com.example.firstmvn.daos.UserDao.getIdNotFoundMsg;
+import static com.example.firstmvn.daos.UserDao.getVersionChangedMsg;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import static org.hamcrest.Matchers.containsString;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+@SpringBootTest(
+    classes = ReactiveMain.class,
+    webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = "spring.main.web-application-type = reactive"
+)
+@ActiveProfiles(ReactiveMain.PROFILE)
+public class ReactiveUserIntegrationTests {
+
+    private final String DUMMY_EMAIL = "foo@bar.com";
+    private final String DUMMY_NAME = "foo bar";
+
+    private final ReactiveUserDao userDao;
+    private final DatabaseClient databaseClient;
+    private final WebTestClient client;
+
+    private List<User> savedUsers;
+    private User savedUser;
+    private User unsavedUser;
+
+
+    /**
+     * Constructor()
+     *
+     * @param userDao
+     * @param databaseClient
+     * @param client
+     */
+    @Autowired
+    public ReactiveUserIntegrationTests(
+        ReactiveUserDao userDao,
+        DatabaseClient databaseClient,
+        WebTestClient client
+    ) {
+        this.userDao = userDao;
+        this.databaseClient = databaseClient;
+        this.client = client;
+    }
+
+
+    /**
+     * Setup dummy data.
+     */
+    @BeforeEach
+    void setUp() {
+        savedUsers = List.of(
+            new User("sean@example.com", "sean maxwell"),
+            new User("john@gmail.com", "john smith"),
+            new User("jane@yahoo.com", "jane doe")
+        );
+        for (User user : savedUsers) {
+            userDao.addOne(user).block();
+        }
+        savedUser = savedUsers.get(0);
+        unsavedUser = new User("someone@exampl.com", "someone");
+    }
+
+
+    /**
+     * Clean up dummy data.
+     */
+    @AfterEach
+    void cleanUp() {
+        databaseClient.sql("DELETE FROM main.users").then().block();
+    }
+
+
+    /**
+     * Test streaming all users as a JSON array.
+     */
+    @Test
+    void getAll() {
+        client.get().uri("/api/v2/users")
+            .accept(MediaType.APPLICATION_JSON)
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("length()").isEqualTo(3)
+            .jsonPath("[0].name").isEqualTo(savedUsers.get(0).getName())
+            .jsonPath("[1].name").isEqualTo(savedUsers.get(1).getName())
+            .jsonPath("[2].name").isEqualTo(savedUsers.get(2).getName())
+            .jsonPath("[0].pwdHash").doesNotExist();
+    }
+
+
+    /**
+     * Test streaming all users as newline-delimited JSON.
+     */
+    @Test
+    void getAll_ndjson() {
+        List<User> users = client.get().uri("/api/v2/users")
+            .accept(MediaType.APPLICATION_NDJSON)
+            .exchange()
+            .expectStatus().isOk()
+            .returnResult(User.class)
+            .getResponseBody()
+            .collectList()
+            .block();
+        assertEquals(3, users.size());
+        assertEquals(savedUser.getId(), users.get(0).getId());
+    }
+
+
+    /**
+     * Test getting one user by id.
+     */
+    @Test
+    void getOne() {
+        client.get().uri("/api/v2/users/" + savedUser.getId())
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("$.id").isEqualTo(savedUser.getId())
+            .jsonPath("$.name").isEqualTo(savedUser.getName())
+            .jsonPath("$.pwdHash").doesNotExist();
+    }
+
+
+    /**
+     * Test fetching one who's id is not found.
+     */
+    @Test
+    void getOne_idNotFound() {
+        Long id = Long.MAX_VALUE;
+        client.get().uri("/api/v2/users/" + id)
+            .exchange()
+            .expectStatus().isNotFound()
+            .expectBody(String.class).value(containsString(getIdNotFoundMsg(id)));
+    }
+
+
+    /**
+     * Test requests WebFlux can't handle keep its status codes: a method the route doesn't have
+     * and a non-numeric id.
+     */
+    @Test
+    void badRequests() {
+        client.patch().uri("/api/v2/users")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.METHOD_NOT_ALLOWED)
+            .expectHeader().value(HttpHeaders.ALLOW, containsString("GET"));
+        client.get().uri("/api/v2/users/foo")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
+
+    /**
+     * Test adding one user.
+     */
+    @Test
+    void addOne() {
+        client.post().uri("/api/v2/users")
+            .bodyValue(unsavedUser)
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(UserController.SUCCESSFUL_POST_MSG);
+        // Test data in db
+        String email = databaseClient.sql("SELECT email FROM main.users WHERE email = :email")
+            .bind("email", unsavedUser.getEmail())
+            .map(row -> row.get("email", String.class))
+            .one()
+            .block();
+        assertEquals(unsavedUser.getEmail(), email);
+    }
+
+
+    /**
+     * Test adding a user who already persists.
+     */
+    @Test
+    void addOne_alreadyPersistsErr() {
+        var errMsg = getAlreadyPersistsMsg(savedUser.getId(), savedUser.getEmail());
+        client.post().uri("/api/v2/users")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.CONFLICT)
+            .expectBody(String.class).value(containsString(errMsg));
+    }
+
+
+    /**
+     * Test updating one user.
+     */
+    @Test
+    void updateOne() {
+        savedUser.setEmail(DUMMY_EMAIL);
+        savedUser.setName(DUMMY_NAME);
+        client.put().uri("/api/v2/users")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(UserController.SUCCESSFUL_UPDATE_MSG);
+        // Test data in db
+        UserDto user = userDao.getOne(savedUser.getId()).block();
+        assertEquals(DUMMY_EMAIL, user.getEmail());
+        assertEquals(DUMMY_NAME, user.getName());
+    }
+
+
+    /**
+     * Test an update with the current version in "If-Match" goes through and bumps the version.
+     */
+    @Test
+    void updateOne_ifMatch() {
+        long version = userDao.getOne(savedUser.getId()).block().getVersion();
+        savedUser.setName(DUMMY_NAME);
+        client.put().uri("/api/v2/users")
+            .header(HttpHeaders.IF_MATCH, "\"" + version + "\"")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isOk();
+        // Test data in db
+        UserDto user = userDao.getOne(savedUser.getId()).block();
+        assertEquals(DUMMY_NAME, user.getName());
+        assertEquals(version + 1, user.getVersion());
+    }
+
+
+    /**
+     * Test an update with a stale version in "If-Match" is a 412 and changes nothing, and a
+     * stale version of a missing user is still a 404.
+     */
+    @Test
+    void updateOne_ifMatchStale() {
+        long version = userDao.getOne(savedUser.getId()).block().getVersion();
+        userDao.updateOne(savedUser).block();
+        String name = savedUser.getName();
+        savedUser.setName(DUMMY_NAME);
+        client.put().uri("/api/v2/users")
+            .header(HttpHeaders.IF_MATCH, "\"" + version + "\"")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED)
+            .expectBody(String.class).value(containsString(getVersionChangedMsg(savedUser.getId(), version)));
+        assertEquals(name, userDao.getOne(savedUser.getId()).block().getName());
+        client.put().uri("/api/v2/users")
+            .header(HttpHeaders.IF_MATCH, "\"" + version + "\"")
+            .bodyValue(unsavedUser)
+            .exchange()
+            .expectStatus().isNotFound();
+    }
+
+
+    /**
+     * Test updating a user to an email another user has.
+     */
+    @Test
+    void updateOne_emailTakenErr() {
+        savedUser.setEmail(savedUsers.get(1).getEmail());
+        client.put().uri("/api/v2/users")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.CONFLICT)
+            .expectBody(String.class).value(containsString(getEmailAlreadyTakenMsg(savedUser.getEmail())));
+    }
+
+
+    /**
+     * Test a name too long for its column is a bad request, not a conflict.
+     */
+    @Test
+    void updateOne_nameTooLong() {
+        savedUser.setName("x".repeat(300));
+        client.put().uri("/api/v2/users")
+            .bodyValue(savedUser)
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
+
+    /**
+     * Test updating a user who's id is not found.
+     */
+    @Test
+    void updateOne_idNotFound() {
+        client.put().uri("/api/v2/users")
+            .bodyValue(unsavedUser)
+            .exchange()
+            .expectStatus().isNotFound()
+            .expectBody(String.class).value(containsString(getIdNotFoundMsg(unsavedUser.getId())));
+    }
+
+
+    /**
+     * Test deleting one user.
+     */
+    @Test
+    void deleteOne() {
+        client.delete().uri("/api/v2/users/" + savedUser.getId())
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(UserController.SUCCESSFUL_DELETE_MSG);
+        // Test data in db
+        client.get().uri("/api/v2/users/" + savedUser.getId())
+            .exchange()
+            .expectStatus().isNotFound();
+    }
+
+
+    /**
+     * Test deleting a user who's id is not found.
+     */
+    @Test
+    void deleteOne_idNotFound() {
+        Long id = Long.MAX_VALUE;
+        client.delete().uri("/api/v2/users/" + id)
+            .exchange()
+            .expectStatus().isNotFound()
+            .expectBody(String.class).value(containsString(getIdNotFoundMsg(id)));
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * The database the benchmarks run against. They delete every user, so they only run on the
+ * database named by "-Dbench.db.name", and only if that name has "bench" in it:
+ *
+ *   createdb -O practice practice_bench
+ *   mvn test -Dbench=true -Dbench.db.name=practice_bench -Dtest=UserInsertBench
+ */
+
+package com.example.firstmvn.bench;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+public final class BenchDatabase {
+
+    public static final String NAME_PROPERTY = "bench.db.name";
+
+    private static final String MARKER = "bench";
+    private static final String NOT_BENCH_MSG = "Benchmarks delete every user, they only run on a " +
+        "database with \"" + MARKER + "\" in its name. Pass one with -D" + NAME_PROPERTY + ", was \"%s\".";
+
+
+    private BenchDatabase() {
+    }
+
+
+    /**
+     * Get the Spring arg that points the app at the bench database.
+     *
+     * @return
+     */
+    public static String getArg() {
+        String name = System.getProperty(NAME_PROPERTY, "");
+        check(name);
+        return "--db.name=" + name;
+    }
+
+
+    /**
+     * Make sure the app is connected to a bench database, whatever it was started with.
+     *
+     * @param jdbcTemplate
+     */
+    public static void check(JdbcTemplate jdbcTemplate) {
+        check(jdbcTemplate.queryForObject("SELECT current_database()", String.class));
+    }
+
+
+    /**
+     * Delete every user, if connected to a bench database.
+     *
+     * @param jdbcTemplate
+     */
+    public static void deleteUsers(JdbcTemplate jdbcTemplate) {
+        check(jdbcTemplate);
+        jdbcTemplate.update("DELETE FROM main.users");
+    }
+
+
+    /**
+     * Make sure the database name is marked as a bench database.
+     *
+     * @param name
+     */
+    private static void check(String name) {
+        if (name == null || !name.contains(MARKER)) {
+            throw new IllegalStateException(String.format(NOT_BENCH_MSG, name));
+        }
+    }
+}
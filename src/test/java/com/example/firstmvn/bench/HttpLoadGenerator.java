@@ -0,0 +1,174 @@
+/**
+ * Closed-loop HTTP load for the benchmarks. Keeps a fixed number of requests in flight, each
+ * connection sending its next request as soon as the last one completes, and records the
+ * latency of every successful response.
+ */
+
+package com.example.firstmvn.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+public class HttpLoadGenerator implements AutoCloseable {
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    private final ExecutorService pool;
+    private final HttpClient client;
+
+
+    /**
+     * Constructor()
+     *
+     * @param threads threads handling responses
+     */
+    public HttpLoadGenerator(int threads) {
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(pool)
+            .build();
+    }
+
+
+    /**
+     * GET random uris from the list over the given number of connections for the duration.
+     * Anything but a 200 counts as an error.
+     *
+     * @param uris
+     * @param connections
+     * @param duration
+     * @param errors
+     * @return
+     */
+    public Histogram run(URI[] uris, int connections, Duration duration, AtomicLong errors)
+        throws InterruptedException {
+        Histogram histogram = new ConcurrentHistogram(3);
+        CountDownLatch done = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        for (int i = 0; i < connections; i++) {
+            send(uris, end, histogram, errors, done);
+        }
+        done.await();
+        histogram.setStartTimeStamp(0);
+        histogram.setEndTimeStamp((System.nanoTime() - start) / 1_000_000);
+        return histogram;
+    }
+
+
+    /**
+     * Print percentiles in milliseconds and throughput.
+     *
+     * @param name
+     * @param connections
+     * @param histogram
+     * @param errors
+     */
+    public static void print(String name, int connections, Histogram histogram, long errors) {
+        double seconds = histogram.getEndTimeStamp() / 1000.0;
+        System.out.printf(
+            "%-9s %6d conns  n=%d  errors=%d  p50=%dms  p99=%dms  p99.9=%dms  max=%dms  %.0f req/s%n",
+            name,
+            connections,
+            histogram.getTotalCount(),
+            errors,
+            histogram.getValueAtPercentile(50) / 1_000_000,
+            histogram.getValueAtPercentile(99) / 1_000_000,
+            histogram.getValueAtPercentile(99.9) / 1_000_000,
+            histogram.getMaxValue() / 1_000_000,
+            histogram.getTotalCount() / seconds
+        );
+    }
+
+
+    /**
+     * Replace all users with generated ones. Their ids are consecutive.
+     *
+     * @param jdbcTemplate
+     * @param count
+     * @return the first id
+     */
+    public static long seedUsers(JdbcTemplate jdbcTemplate, int count) {
+        BenchDatabase.deleteUsers(jdbcTemplate);
+        jdbcTemplate.update(
+            "INSERT INTO main.users (email, name, created) " +
+            "SELECT 'bench' || n || '@example.com', 'bench user ' || n, CURRENT_DATE " +
+            "FROM generate_series(1, ?) AS n",
+            count
+        );
+        return jdbcTemplate.queryForObject("SELECT min(id) FROM main.users", Long.class);
+    }
+
+
+    /**
+     * A url for each of the consecutive ids.
+     *
+     * @param baseUrl e.g. "http://localhost:3000/api/users/"
+     * @param firstId
+     * @param count
+     * @return
+     */
+    public static URI[] uris(String baseUrl, long firstId, int count) {
+        URI[] uris = new URI[count];
+        for (int i = 0; i < count; i++) {
+            uris[i] = URI.create(baseUrl + (firstId + i));
+        }
+        return uris;
+    }
+
+
+    /**
+     * The port a node started with "server.port=0" is listening on.
+     *
+     * @param node
+     * @return
+     */
+    public static String port(ConfigurableApplicationContext node) {
+        return node.getEnvironment().getProperty("local.server.port");
+    }
+
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+
+    /**
+     * Send one request and chain the next one on its completion.
+     */
+    private void send(URI[] uris, long end, Histogram histogram, AtomicLong errors, CountDownLatch done) {
+        if (System.nanoTime() > end) {
+            done.countDown();
+            return;
+        }
+        HttpRequest req = HttpRequest.newBuilder(uris[ThreadLocalRandom.current().nextInt(uris.length)])
+            .timeout(REQUEST_TIMEOUT)
+            .GET()
+            .build();
+        long start = System.nanoTime();
+        client.sendAsync(req, HttpResponse.BodyHandlers.discarding()).whenCompleteAsync((res, ex) -> {
+            if (ex == null && res.statusCode() == 200) {
+                histogram.recordValue(System.nanoTime() - start);
+            } else {
+                errors.incrementAndGet();
+            }
+            send(uris, end, histogram, errors, done);
+        }, pool);
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Compare cold starts of the packaged app: the default settings, the prod profile (Flyway-owned
+ * schema, lazy initialization) and the prod profile with the AppCDS archive. Each run is a new
+ * JVM and reports the time from launch to the first successful GET "/api/users" and the resident
+ * memory at that point (Linux only). One more start of each is loaded for the steady-state
+ * throughput. Needs the plain jar and archive from the cds profile, and only runs with
+ * "-Dbench=true":
+ *
+ *   mvn -P cds package && mvn test -Dbench=true -Dtest=StartupBench
+ */
+
+package com.example.firstmvn.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+public class StartupBench {
+
+    private static final Path TARGET = Path.of("target");
+    private static final Path ARCHIVE = TARGET.resolve("app.jsa");
+    private static final String PROD = "--spring.profiles.active=prod";
+    private static final int RUNS = 5;
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+    private static final long POLL_MS = 10;
+    private static final int CONNECTIONS = 16;
+    private static final int CLIENT_THREADS = 2;
+    private static final Duration WARMUP = Duration.ofSeconds(20);
+    private static final Duration DURATION = Duration.ofSeconds(10);
+
+    private final HttpClient client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(1))
+        .build();
+
+
+    /**
+     * Start each configuration RUNS times and print the medians, then load each.
+     */
+    @Test
+    void compareConfigs() throws Exception {
+        Path jar = findJar();
+        assumeTrue(jar != null && Files.exists(ARCHIVE), "Run \"mvn -P cds package\" first");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> cds = List.of(java, "-XX:SharedArchiveFile=" + ARCHIVE, "-Xlog:cds=error", "-jar",
+            jar.toString(), PROD);
+        run("default", List.of(java, "-jar", jar.toString()));
+        run("prod", List.of(java, "-jar", jar.toString(), PROD));
+        run("prod+cds", cds);
+    }
+
+
+    /**
+     * Start one configuration RUNS times and print the median time to first request and RSS.
+     * Then start it once more and print its throughput once warmed up.
+     *
+     * @param name
+     * @param command
+     */
+    private void run(String name, List<String> command) throws Exception {
+        List<Long> times = new ArrayList<>();
+        List<Long> rss = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            long[] result = startOnce(command, null);
+            times.add(result[0]);
+            rss.add(result[1]);
+        }
+        Collections.sort(times);
+        Collections.sort(rss);
+        System.out.printf(
+            "%-9s n=%d  first request p50=%dms  min=%dms  max=%dms  rss p50=%s%n",
+            name,
+            RUNS,
+            times.get(RUNS / 2),
+            times.get(0),
+            times.get(RUNS - 1),
+            (rss.get(RUNS / 2) < 0) ? "n/a" : (rss.get(RUNS / 2) / 1024) + "MB"
+        );
+        startOnce(command, name);
+    }
+
+
+    /**
+     * Launch the app, poll until a request succeeds and stop it. Loads it first if a name to print
+     * the throughput under is given.
+     *
+     * @param command
+     * @param loadName null to stop right away
+     * @return ms to the first successful request and RSS in KB, -1 if unknown
+     */
+    private long[] startOnce(List<String> command, String loadName) throws Exception {
+        int port = freePort();
+        command = new ArrayList<>(command);
+        command.add("--server.port=" + port);
+        String url = "http://localhost:" + port + "/api/users?limit=20";
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            .timeout(Duration.ofSeconds(5))
+            .build();
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.to(TARGET.resolve("startup-bench.log").toFile()))
+            .start();
+        try {
+            long deadline = start + TIMEOUT.toNanos();
+            while (!succeeds(request)) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("App exited, see target/startup-bench.log");
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("No successful request after " + TIMEOUT);
+                }
+                Thread.sleep(POLL_MS);
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            long[] result = {elapsedMs, rssKb(process.pid())};
+            if (loadName != null) {
+                load(loadName, URI.create(url));
+            }
+            return result;
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+
+    /**
+     * Warm up then print the throughput and latency of GET "/api/users".
+     *
+     * @param name
+     * @param uri
+     */
+    private static void load(String name, URI uri) throws InterruptedException {
+        URI[] uris = {uri};
+        try (HttpLoadGenerator load = new HttpLoadGenerator(CLIENT_THREADS)) {
+            load.run(uris, CONNECTIONS, WARMUP, new AtomicLong());
+            AtomicLong errors = new AtomicLong();
+            Histogram histogram = load.run(uris, CONNECTIONS, DURATION, errors);
+            HttpLoadGenerator.print(name, CONNECTIONS, histogram, errors.get());
+        }
+    }
+
+
+    /**
+     * Whether the request gets a 200.
+     *
+     * @param request
+     * @return
+     */
+    private boolean succeeds(HttpRequest request) throws InterruptedException {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Resident memory of a process from "/proc".
+     *
+     * @param pid
+     * @return KB, -1 if it can't be read
+     */
+    private static long rssKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException ex) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+
+    /**
+     * The plain jar the cds profile builds.
+     *
+     * @return null if it's missing
+     */
+    private static Path findJar() {
+        File[] jars = TARGET.toFile().listFiles((dir, name) ->
+            name.startsWith("first-mvn-") && name.endsWith(".jar"));
+        return (jars == null || jars.length == 0) ? null : jars[0].toPath();
+    }
+
+
+    /**
+     * A port nothing is listening on.
+     *
+     * @return
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Compare insert latency under concurrency for the old two-query insert (select, then save), the
+ * single-statement UserDao.addOne() and the same inserts coalesced by UserInsertCoalescer. Also
+ * prints the commits and WAL syncs (Postgres 14+) each took. Only runs with "-Dbench=true":
+ * 
+ *   mvn test -Dbench=true -Dbench.db.name=practice_bench -Dtest=UserInsertBench
+ */
+
+package com.example.firstmvn.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.daos.UserInsertCoalescer;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.repositories.UserRepo;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+@SpringBootTest(classes = Main.class, properties = {
+    "db.name = ${" + BenchDatabase.NAME_PROPERTY + "}",
+    "spring.jpa.show-sql = false",
+    "users.insert-coalescing.enabled = true"
+})
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+public class UserInsertBench {
+
+    private static final int THREADS = 32;
+    private static final int INSERTS_PER_THREAD = 500;
+    private static final int WARMUP_INSERTS = 2_000;
+    // Postgres sends its statistics every 500ms at most
+    private static final long STATS_DELAY_MS = 1000;
+    private static final String STATS_SQL = "SELECT d.xact_commit, w.wal_sync " +
+        "FROM pg_stat_database AS d, pg_stat_wal AS w WHERE d.datname = current_database()";
+
+    private final UserDao userDao;
+    private final UserInsertCoalescer insertCoalescer;
+    private final UserRepo userRepo;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate txTemplate;
+
+
+    /**
+     * Constructor()
+     * 
+     * @param userDao
+     * @param insertCoalescer
+     * @param userRepo
+     * @param jdbcTemplate
+     * @param transactionManager
+     */
+    @Autowired
+    public UserInsertBench(
+        UserDao userDao,
+        UserInsertCoalescer insertCoalescer,
+        UserRepo userRepo,
+        JdbcTemplate jdbcTemplate,
+        PlatformTransactionManager transactionManager
+    ) {
+        this.userDao = userDao;
+        this.insertCoalescer = insertCoalescer;
+        this.userRepo = userRepo;
+        this.jdbcTemplate = jdbcTemplate;
+        this.txTemplate = new TransactionTemplate(transactionManager);
+    }
+
+
+    /**
+     * Make sure this is the bench database before writing to it.
+     */
+    @BeforeEach
+    void checkDatabase() {
+        BenchDatabase.check(jdbcTemplate);
+    }
+
+
+    /**
+     * Clean up dummy data.
+     */
+    @AfterEach
+    void cleanUp() {
+        BenchDatabase.deleteUsers(jdbcTemplate);
+    }
+
+
+    /**
+     * Run the insert paths and print their latencies.
+     */
+    @Test
+    void concurrentInserts() throws Exception {
+        // Same steps the old UserDao.addOne() took, in one transaction
+        Inserter selectThenSave = user -> txTemplate.executeWithoutResult(status -> {
+            if (userRepo.findByIdOrEmail(user.getId(), user.getEmail()) == null) {
+                userRepo.save(user);
+            }
+        });
+        Inserter singleStatement = userDao::addOne;
+        Inserter coalesced = insertCoalescer::addOne;
+        // Warm up every path
+        run("warmup-a", selectThenSave, WARMUP_INSERTS / THREADS);
+        run("warmup-b", singleStatement, WARMUP_INSERTS / THREADS);
+        run("warmup-c", coalesced, WARMUP_INSERTS / THREADS);
+        cleanUp();
+        // Measure
+        long[] stats = getStats();
+        Histogram before = run("before", selectThenSave, INSERTS_PER_THREAD);
+        long[] beforeStats = getStatsSince(stats);
+        cleanUp();
+        stats = getStats();
+        Histogram after = run("after", singleStatement, INSERTS_PER_THREAD);
+        long[] afterStats = getStatsSince(stats);
+        cleanUp();
+        stats = getStats();
+        Histogram batched = run("batched", coalesced, INSERTS_PER_THREAD);
+        long[] batchedStats = getStatsSince(stats);
+        print("select + save", before, beforeStats);
+        print("insert ... on conflict", after, afterStats);
+        print("coalesced", batched, batchedStats);
+    }
+
+
+    /**
+     * Insert users from several threads and record the latency of each insert.
+     * 
+     * @param prefix
+     * @param inserter
+     * @param perThread
+     * @return
+     */
+    private Histogram run(String prefix, Inserter inserter, int perThread) throws Exception {
+        Histogram histogram = new Histogram(3);
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Callable<Histogram>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(() -> {
+                Histogram local = new Histogram(3);
+                for (int i = 0; i < perThread; i++) {
+                    int n = counter.incrementAndGet();
+                    User user = new User(prefix + n + "@example.com", "bench user " + n);
+                    long start = System.nanoTime();
+                    inserter.insert(user);
+                    local.recordValue(System.nanoTime() - start);
+                }
+                return local;
+            });
+        }
+        long start = System.nanoTime();
+        for (Future<Histogram> result : pool.invokeAll(tasks)) {
+            histogram.add(result.get());
+        }
+        histogram.setStartTimeStamp(0);
+        histogram.setEndTimeStamp((System.nanoTime() - start) / 1_000_000);
+        pool.shutdown();
+        return histogram;
+    }
+
+
+    /**
+     * Commits in this database and WAL syncs so far.
+     * 
+     * @return
+     */
+    private long[] getStats() throws InterruptedException {
+        Thread.sleep(STATS_DELAY_MS);
+        return jdbcTemplate.queryForObject(STATS_SQL, (rs, i) -> new long[] {rs.getLong(1), rs.getLong(2)});
+    }
+
+
+    /**
+     * Commits and WAL syncs since the earlier stats.
+     * 
+     * @param earlier
+     * @return
+     */
+    private long[] getStatsSince(long[] earlier) throws InterruptedException {
+        long[] now = getStats();
+        return new long[] {now[0] - earlier[0], now[1] - earlier[1]};
+    }
+
+
+    /**
+     * Print percentiles in microseconds, throughput, commits and WAL syncs.
+     * 
+     * @param name
+     * @param histogram
+     * @param stats
+     */
+    private static void print(String name, Histogram histogram, long[] stats) {
+        double seconds = histogram.getEndTimeStamp() / 1000.0;
+        System.out.printf(
+            "%-24s n=%d  p50=%dus  p99=%dus  p99.9=%dus  max=%dus  %.0f inserts/s  commits=%d  wal syncs=%d%n",
+            name,
+            histogram.getTotalCount(),
+            histogram.getValueAtPercentile(50) / 1000,
+            histogram.getValueAtPercentile(99) / 1000,
+            histogram.getValueAtPercentile(99.9) / 1000,
+            histogram.getMaxValue() / 1000,
+            histogram.getTotalCount() / seconds,
+            stats[0],
+            stats[1]
+        );
+    }
+
+
+    @FunctionalInterface
+    private interface Inserter {
+        void insert(User user);
+    }
+}
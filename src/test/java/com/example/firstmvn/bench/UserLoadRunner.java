@@ -0,0 +1,363 @@
+/**
+ * Load test for "/api/users". Starts the app against the local Postgres, seeds users and sends a
+ * configurable mix of requests at a constant arrival rate (open model). Each request is timed
+ * from when it was scheduled to go out, not from when it actually went out, so a stalled server
+ * shows up in the latencies instead of just slowing the client down (coordinated omission).
+ * Prints p50/p99/p99.9/max per endpoint and the achieved throughput.
+ *
+ *   mvn -P load test -Dbench.db.name=practice_bench -Dload.args="--rate=500 --duration=60s --mix=getOne:70,getAll:10,addOne:10,updateOne:5,deleteOne:5"
+ *
+ * Options (defaults in OPTIONS): rate (req/s), duration, warmup, users (seeded), mix, max-in-flight
+ * (requests past this are dropped and counted), client-threads. Spring properties can be passed
+ * as well, e.g. "--users.cache.enabled=false".
+ */
+
+package com.example.firstmvn.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.example.firstmvn.Main;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+public class UserLoadRunner {
+
+    private static final Map<String, String> OPTIONS = new LinkedHashMap<>(Map.of(
+        "rate", "200",
+        "duration", "30s",
+        "warmup", "10s",
+        "users", "10000",
+        "mix", "getOne:60,getAll:10,addOne:10,updateOne:15,deleteOne:5",
+        "max-in-flight", "10000",
+        "client-threads", "4"
+    ));
+    private static final Map<String, String> SPRING_PROPS = Map.of(
+        "server.port", "0",
+        "spring.jpa.show-sql", "false",
+        "logging.level.root", "warn"
+    );
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(60);
+
+    private final double rate;
+    private final Duration duration;
+    private final Duration warmup;
+    private final int users;
+    private final Map<Op, Integer> mix;
+    private final int mixTotal;
+    private final int maxInFlight;
+    private final ExecutorService clientPool;
+    private final HttpClient client;
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong nextDelete = new AtomicLong();
+
+    private String baseUrl;
+    private long firstId;
+    private long deletable;
+
+
+    /**
+     * The requests in the mix.
+     */
+    private enum Op {
+        getOne, getAll, addOne, updateOne, deleteOne
+    }
+
+
+    /**
+     * Latencies and errors of one endpoint.
+     */
+    private static class Stats {
+        final Histogram histogram = new ConcurrentHistogram(3);
+        final AtomicLong errors = new AtomicLong();
+    }
+
+
+    /**
+     * Constructor()
+     *
+     * @param options
+     */
+    public UserLoadRunner(Map<String, String> options) {
+        this.rate = Double.parseDouble(options.get("rate"));
+        this.duration = DurationStyle.detectAndParse(options.get("duration"));
+        this.warmup = DurationStyle.detectAndParse(options.get("warmup"));
+        this.users = Integer.parseInt(options.get("users"));
+        this.mix = parseMix(options.get("mix"));
+        this.mixTotal = mix.values().stream().mapToInt(Integer::intValue).sum();
+        this.maxInFlight = Integer.parseInt(options.get("max-in-flight"));
+        this.clientPool = Executors.newFixedThreadPool(Integer.parseInt(options.get("client-threads")));
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(clientPool)
+            .build();
+    }
+
+
+    /**
+     * Main()
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(OPTIONS);
+        Map<String, String> springProps = new LinkedHashMap<>(SPRING_PROPS);
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            (OPTIONS.containsKey(kv[0]) ? options : springProps).put(kv[0], kv[1]);
+        }
+        // Devtools would restart main() without our options, it only reads the system property
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        // Args rather than properties(), which application.properties would override
+        List<String> springArgs = new ArrayList<>(List.of(BenchDatabase.getArg()));
+        springProps.forEach((key, value) -> springArgs.add("--" + key + "=" + value));
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(Main.class)
+            .run(springArgs.toArray(new String[0]));
+        UserLoadRunner runner = new UserLoadRunner(options);
+        try {
+            BenchDatabase.check(app.getBean(JdbcTemplate.class));
+            System.out.println("Options: " + options);
+            runner.run(app);
+        } finally {
+            BenchDatabase.deleteUsers(app.getBean(JdbcTemplate.class));
+            runner.clientPool.shutdownNow();
+            app.close();
+        }
+    }
+
+
+    /**
+     * Seed, warm up, then measure and print the report.
+     *
+     * @param app
+     */
+    public void run(ConfigurableApplicationContext app) throws InterruptedException {
+        baseUrl = "http://localhost:" + HttpLoadGenerator.port(app) + "/api/users";
+        // Seed extra users for the deletes so reads and updates always find theirs
+        double seconds = (warmup.toMillis() + duration.toMillis()) / 1000.0;
+        deletable = (long) (rate * seconds * mix.getOrDefault(Op.deleteOne, 0) / mixTotal * 1.1) + 100;
+        firstId = HttpLoadGenerator.seedUsers(app.getBean(JdbcTemplate.class), (int) (users + deletable));
+        // Warm up
+        schedule(warmup, newStats());
+        dropped.set(0);
+        // Measure
+        Map<Op, Stats> stats = newStats();
+        long start = System.nanoTime();
+        long sent = schedule(duration, stats);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        print(stats, sent, elapsed);
+    }
+
+
+    /**
+     * Send requests at the intended rate for the duration, whether or not earlier ones have
+     * completed, then wait for the ones still in flight. Returns the number scheduled.
+     *
+     * @param duration
+     * @param stats
+     * @return
+     */
+    private long schedule(Duration duration, Map<Op, Stats> stats) throws InterruptedException {
+        long intervalNs = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long n = 0;
+        for (long intended = start; intended < end; intended = start + (++n) * intervalNs) {
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+            send(pick(), intended, stats);
+        }
+        // Drain
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return n;
+    }
+
+
+    /**
+     * Send one request and record its latency from the intended send time.
+     *
+     * @param op
+     * @param intended
+     * @param stats
+     */
+    private void send(Op op, long intended, Map<Op, Stats> stats) {
+        Stats opStats = stats.get(op);
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            dropped.incrementAndGet();
+            opStats.errors.incrementAndGet();
+            return;
+        }
+        client.sendAsync(request(op), HttpResponse.BodyHandlers.discarding()).whenComplete((res, ex) -> {
+            if (ex == null && res.statusCode() == 200) {
+                opStats.histogram.recordValue(System.nanoTime() - intended);
+            } else {
+                opStats.errors.incrementAndGet();
+            }
+            inFlight.decrementAndGet();
+        });
+    }
+
+
+    /**
+     * Build the request for an operation. Reads and updates use the seeded users, deletes use
+     * the extra ones after them, each deleted once.
+     *
+     * @param op
+     * @return
+     */
+    private HttpRequest request(Op op) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long n = random.nextInt(users);
+        HttpRequest.Builder builder;
+        switch (op) {
+            case getOne:
+                builder = HttpRequest.newBuilder(URI.create(baseUrl + "/" + (firstId + n))).GET();
+                break;
+            case getAll:
+                builder = HttpRequest.newBuilder(URI.create(baseUrl + "?after=" + (firstId + n))).GET();
+                break;
+            case addOne:
+                long c = created.incrementAndGet();
+                builder = HttpRequest.newBuilder(URI.create(baseUrl))
+                    .POST(json(-1, "load" + c + "@example.com", "load user " + c));
+                break;
+            case updateOne:
+                // Seeded emails are "bench" + (id - firstId + 1)
+                builder = HttpRequest.newBuilder(URI.create(baseUrl))
+                    .PUT(json(firstId + n, "bench" + (n + 1) + "@example.com", "updated " + random.nextInt()));
+                break;
+            default:
+                long d = Math.min(nextDelete.getAndIncrement(), deletable - 1);
+                builder = HttpRequest.newBuilder(URI.create(baseUrl + "/" + (firstId + users + d))).DELETE();
+                break;
+        }
+        return builder.timeout(REQUEST_TIMEOUT).header("Content-Type", "application/json").build();
+    }
+
+
+    /**
+     * Pick an operation by its weight in the mix.
+     *
+     * @return
+     */
+    private Op pick() {
+        int r = ThreadLocalRandom.current().nextInt(mixTotal);
+        for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+
+    /**
+     * Print latencies in milliseconds per endpoint and overall, and the achieved throughput.
+     *
+     * @param stats
+     * @param sent
+     * @param elapsed seconds
+     */
+    private void print(Map<Op, Stats> stats, long sent, double elapsed) {
+        String format = "%-10s %9s %7s %10s %10s %10s %10s %9s%n";
+        System.out.printf(format, "endpoint", "count", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "req/s");
+        Histogram all = new Histogram(3);
+        long errors = 0;
+        for (Map.Entry<Op, Stats> entry : stats.entrySet()) {
+            Stats opStats = entry.getValue();
+            all.add(opStats.histogram);
+            errors += opStats.errors.get();
+            printRow(format, entry.getKey().name(), opStats.histogram, opStats.errors.get(), elapsed);
+        }
+        printRow(format, "all", all, errors, elapsed);
+        System.out.printf(
+            "intended %.0f req/s, achieved %.1f req/s, sent %d, dropped %d (max-in-flight)%n",
+            rate, all.getTotalCount() / elapsed, sent, dropped.get()
+        );
+    }
+
+
+    private static void printRow(String format, String name, Histogram histogram, long errors, double elapsed) {
+        System.out.printf(
+            format,
+            name,
+            histogram.getTotalCount(),
+            errors,
+            ms(histogram.getValueAtPercentile(50)),
+            ms(histogram.getValueAtPercentile(99)),
+            ms(histogram.getValueAtPercentile(99.9)),
+            ms(histogram.getMaxValue()),
+            String.format("%.1f", histogram.getTotalCount() / elapsed)
+        );
+    }
+
+
+    private static String ms(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+
+    /**
+     * A user as the json body of a request.
+     */
+    private static HttpRequest.BodyPublisher json(long id, String email, String name) {
+        return HttpRequest.BodyPublishers.ofString(String.format(
+            "{\"id\":%d,\"email\":\"%s\",\"name\":\"%s\",\"pwdHash\":\"\"}", id, email, name
+        ));
+    }
+
+
+    private Map<Op, Stats> newStats() {
+        Map<Op, Stats> stats = new EnumMap<>(Op.class);
+        for (Op op : mix.keySet()) {
+            stats.put(op, new Stats());
+        }
+        return stats;
+    }
+
+
+    /**
+     * Parse "getOne:60,getAll:10,..." into weights.
+     *
+     * @param mix
+     * @return
+     */
+    private static Map<Op, Integer> parseMix(String mix) {
+        Map<Op, Integer> weights = new EnumMap<>(Op.class);
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(Op.valueOf(kv[0]), Integer.parseInt(kv[1]));
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Check GET "/api/users/search" stays on its indexes at 1M users. Seeds the table, prints the plan
+ * (EXPLAIN ANALYZE) of the search query for short prefixes, substrings, emails and a common term
+ * and times each search through UserService. Fails if any tier of any search plans a Seq Scan on
+ * main.users, or if a scan reads more than a tenth of the table. The common term ("mar", in 1 of 5
+ * names) has too many substring matches to rank them all, so they come off the GiST index nearest
+ * first, which makes it the slowest search (about 400ms on one core). Only runs with
+ * "-Dbench=true":
+ *
+ *   mvn test -Dbench=true -Dbench.db.name=practice_bench -Dtest=UserSearchBench
+ */
+
+package com.example.firstmvn.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.services.UserService;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+public class UserSearchBench {
+
+    private static final int USERS = 1_000_000;
+    private static final int LIMIT = 20;
+    private static final int CANDIDATES = 1000;
+    private static final int WARMUP = 5;
+    private static final int ITERATIONS = 50;
+    private static final Pattern ROWS = Pattern.compile("actual time=\\S+ rows=(\\d+) loops=(\\d+)");
+    private static final String SEQ_SCAN = "Seq Scan on users";
+    private static final Pattern REMOVED = Pattern.compile("Rows Removed by Filter: (\\d+)");
+
+    // Names are a common first name and a random last name, emails "first.last<n>@domain"
+    private static final String SEED_SQL = "INSERT INTO main.users (email, name, pwdHash, created) " +
+        "SELECT f || '.' || l || i || '@' || d, f || ' ' || l, '', CURRENT_DATE FROM (" +
+        "  SELECT i, (ARRAY['sean', 'john', 'jane', 'maria', 'mark', 'mary', 'omar', 'zoe', 'li', " +
+        "    'ana', 'ivan', 'kate', 'luis', 'nora', 'paul', 'rosa', 'tom', 'uma', 'vera', 'wes'])[1 + i % 20] AS f, " +
+        "    substr(md5(i::text), 1, 7) AS l, " +
+        "    (ARRAY['example.com', 'gmail.com', 'yahoo.com', 'mail.org'])[1 + i % 4] AS d " +
+        "  FROM generate_series(1, ?) AS i" +
+        ") AS s";
+
+    // Short prefix, name substring, email prefix, email substring, common and no matches
+    private static final List<String> SEARCHES = List.of("zo", "a3f9", "zoe.4", "41234", "mar", "qqqq");
+
+
+    /**
+     * Seed, explain and time every search.
+     */
+    @Test
+    void explainSearches() throws Exception {
+        ConfigurableApplicationContext node = startNode();
+        JdbcTemplate jdbcTemplate = node.getBean(JdbcTemplate.class);
+        NamedParameterJdbcTemplate namedJdbcTemplate = node.getBean(NamedParameterJdbcTemplate.class);
+        UserService userService = node.getBean(UserService.class);
+        BenchDatabase.check(jdbcTemplate);
+        try {
+            long start = System.nanoTime();
+            jdbcTemplate.update(SEED_SQL, USERS);
+            jdbcTemplate.execute("ANALYZE main.users");
+            System.out.printf("seeded %d users in %dms%n", USERS, (System.nanoTime() - start) / 1_000_000);
+            for (String q : SEARCHES) {
+                // Plan
+                List<String> plan = namedJdbcTemplate.queryForList(
+                    "EXPLAIN (ANALYZE, BUFFERS) " + UserDao.getSearchSql(q),
+                    UserDao.getSearchParams(q, LIMIT + 1, 0, CANDIDATES),
+                    String.class
+                );
+                System.out.println("\n=== q=\"" + q + "\"");
+                plan.forEach(System.out::println);
+                // Time
+                for (int i = 0; i < WARMUP; i++) {
+                    userService.search(q, LIMIT, 0);
+                }
+                long[] times = new long[ITERATIONS];
+                int found = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long t0 = System.nanoTime();
+                    found = userService.search(q, LIMIT, 0).getUsers().size();
+                    times[i] = System.nanoTime() - t0;
+                }
+                Arrays.sort(times);
+                System.out.printf("q=%-6s found=%-2d p50=%.2fms  p99=%.2fms%n", q, found,
+                    times[ITERATIONS / 2] / 1e6, times[ITERATIONS * 99 / 100] / 1e6);
+                assertTrue(plan.stream().noneMatch(line -> line.contains(SEQ_SCAN)),
+                    "Search for \"" + q + "\" has a Seq Scan");
+                long scanned = getMaxRowsScanned(plan);
+                assertTrue(scanned < USERS / 10, "Search for \"" + q + "\" scanned " + scanned + " rows");
+            }
+        } finally {
+            jdbcTemplate.update("TRUNCATE main.users");
+            node.close();
+        }
+    }
+
+
+    /**
+     * The most rows any scan in a plan read, the rows it returned plus the ones its filter
+     * removed, over all its loops. An index scan with a filter (e.g. on the primary key) can
+     * read as much as a Seq Scan.
+     *
+     * @param plan EXPLAIN ANALYZE output
+     * @return
+     */
+    private static long getMaxRowsScanned(List<String> plan) {
+        long max = 0;
+        for (int i = 0; i < plan.size(); i++) {
+            Matcher rows = ROWS.matcher(plan.get(i));
+            if (!plan.get(i).contains(" Scan ") || !rows.find()) {
+                continue;
+            }
+            long perLoop = Long.parseLong(rows.group(1));
+            long loops = Long.parseLong(rows.group(2));
+            long removed = 0;
+            // Details are indented below the node, up to the next node
+            for (int j = i + 1; j < plan.size() && !plan.get(j).contains("->"); j++) {
+                Matcher matcher = REMOVED.matcher(plan.get(j));
+                if (matcher.find()) {
+                    removed = Long.parseLong(matcher.group(1));
+                }
+            }
+            // Both are averages per loop (worker)
+            max = Math.max(max, (perLoop + removed) * loops);
+        }
+        return max;
+    }
+
+
+    /**
+     * Start a node without the cache, notifications or the email filter.
+     *
+     * @return
+     */
+    private static ConfigurableApplicationContext startNode() {
+        return new SpringApplicationBuilder(Main.class)
+            // Args rather than properties(), which application.properties would override
+            .run(
+                "--server.port=0",
+                "--spring.devtools.restart.enabled=false",
+                "--spring.jpa.show-sql=false",
+                BenchDatabase.getArg(),
+                "--users.cache.enabled=false",
+                "--users.cache.notify.enabled=false",
+                "--users.email-filter.enabled=false"
+            );
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Compare throughput and latency of GET "/api/users/{id}" with requests on Tomcat's platform
+ * thread pool vs on virtual threads, at 1k to 10k concurrent connections. The node runs the
+ * shipped configuration, cache included, and there are more users than the cache holds so
+ * misses keep going to the database. The virtual thread run is skipped below Java 21. The client
+ * runs in the same JVM, so it needs a bigger heap and "ulimit -n" above 2x the connections. Only
+ * runs with "-Dbench=true":
+ *
+ *   mvn test -Dbench=true -Dbench.db.name=practice_bench -Dtest.heap=2g -Dtest=VirtualThreadsBench
+ */
+
+package com.example.firstmvn.bench;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.firstmvn.Main;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+public class VirtualThreadsBench {
+
+    private static final List<Integer> CONNECTIONS = List.of(1_000, 2_000, 5_000, 10_000);
+    // Above "users.cache.max-size"
+    private static final int USERS = 50_000;
+    private static final int CLIENT_THREADS = 4;
+    private static final Duration WARMUP = Duration.ofSeconds(5);
+    private static final Duration DURATION = Duration.ofSeconds(10);
+
+
+    /**
+     * Run every connection count against both modes and print the results.
+     */
+    @Test
+    void compareModes() throws Exception {
+        run(false);
+        if (Runtime.version().feature() >= 21) {
+            run(true);
+        } else {
+            System.out.println("virtual threads: skipped, needs Java 21+ (running on Java " +
+                Runtime.version().feature() + ")");
+        }
+    }
+
+
+    /**
+     * Start a node in one mode, seed users and load it at each connection count.
+     *
+     * @param virtual
+     */
+    private void run(boolean virtual) throws Exception {
+        String mode = virtual ? "virtual" : "platform";
+        ConfigurableApplicationContext node = startNode(virtual);
+        JdbcTemplate jdbcTemplate = node.getBean(JdbcTemplate.class);
+        BenchDatabase.check(jdbcTemplate);
+        try (HttpLoadGenerator load = new HttpLoadGenerator(CLIENT_THREADS)) {
+            long firstId = HttpLoadGenerator.seedUsers(jdbcTemplate, USERS);
+            String baseUrl = "http://localhost:" + HttpLoadGenerator.port(node) + "/api/users/";
+            URI[] uris = HttpLoadGenerator.uris(baseUrl, firstId, USERS);
+            load.run(uris, CONNECTIONS.get(0), WARMUP, new AtomicLong());
+            for (int connections : CONNECTIONS) {
+                AtomicLong errors = new AtomicLong();
+                Histogram histogram = load.run(uris, connections, DURATION, errors);
+                HttpLoadGenerator.print(mode, connections, histogram, errors.get());
+            }
+        } finally {
+            BenchDatabase.deleteUsers(jdbcTemplate);
+            node.close();
+        }
+    }
+
+
+    /**
+     * Start a node on a random port in the given mode.
+     *
+     * @param virtual
+     * @return
+     */
+    private static ConfigurableApplicationContext startNode(boolean virtual) {
+        return new SpringApplicationBuilder(Main.class)
+            // Args rather than properties(), which application.properties would override
+            .run(
+                "--server.port=0",
+                "--spring.devtools.restart.enabled=false",
+                BenchDatabase.getArg(),
+                "--server.tomcat.max-connections=20000",
+                "--server.tomcat.accept-count=10000",
+                "--app.virtual-threads.enabled=" + virtual
+            );
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Start the app for the JMH benchmarks that need Spring and a local Postgres. Uses the bench
+ * database (see BenchDatabase) and keeps the logs quiet.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.bench.BenchDatabase;
+
+import java.util.Arrays;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+
+public final class BenchmarkApp {
+
+    public static final int USERS = 1_000;
+
+
+    private BenchmarkApp() {
+    }
+
+
+    /**
+     * Start the app. Without a web server when only the beans are needed.
+     *
+     * @param web
+     * @param args extra "--key=value" args, these win over the defaults
+     * @return
+     */
+    public static ConfigurableApplicationContext start(boolean web, String... args) {
+        String[] defaults = {
+            "--server.port=0",
+            "--spring.devtools.restart.enabled=false",
+            BenchDatabase.getArg(),
+            "--spring.jpa.show-sql=false",
+            "--app.metrics.enabled=false",
+            "--spring.jpa.properties.hibernate.generate_statistics=false",
+            "--logging.level.root=warn"
+        };
+        String[] all = Arrays.copyOf(defaults, defaults.length + args.length);
+        System.arraycopy(args, 0, all, defaults.length, args.length);
+        return new SpringApplicationBuilder(Main.class)
+            .web(web ? WebApplicationType.SERVLET : WebApplicationType.NONE)
+            // Args rather than properties(), which application.properties would override
+            .run(all);
+    }
+
+
+    /**
+     * Replace all users with generated ones. Their ids are consecutive.
+     *
+     * @param context
+     * @return the first id
+     */
+    public static long seedUsers(ConfigurableApplicationContext context) {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        BenchDatabase.deleteUsers(jdbcTemplate);
+        jdbcTemplate.update(
+            "INSERT INTO main.users (email, name, pwdHash, created) " +
+            "SELECT 'bench' || n || '@example.com', 'bench user ' || n, '', CURRENT_DATE " +
+            "FROM generate_series(1, ?) AS n",
+            USERS
+        );
+        return jdbcTemplate.queryForObject("SELECT min(id) FROM main.users", Long.class);
+    }
+
+
+    /**
+     * Delete all users and stop the app.
+     *
+     * @param context
+     */
+    public static void stop(ConfigurableApplicationContext context) {
+        BenchDatabase.deleteUsers(context.getBean(JdbcTemplate.class));
+        context.close();
+    }
+}
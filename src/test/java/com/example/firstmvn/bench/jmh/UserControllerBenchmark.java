@@ -0,0 +1,96 @@
+/**
+ * UserController dispatch through MockMvc on the full app, so each call goes through the
+ * DispatcherServlet, Jackson, the service, the cache and the database like a real request
+ * minus the network. Needs a local Postgres.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.firstmvn.entities.User;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserControllerBenchmark {
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private ConfigurableApplicationContext context;
+    private ObjectMapper objectMapper;
+    private MockMvc mvc;
+    private long firstId;
+
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApp.start(true);
+        objectMapper = context.getBean(ObjectMapper.class);
+        mvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+        firstId = BenchmarkApp.seedUsers(context);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkApp.stop(context);
+    }
+
+
+    /**
+     * GET "/api/users/{id}", mostly served from the cache.
+     */
+    @Benchmark
+    public MvcResult getOne() throws Exception {
+        long id = firstId + counter.getAndIncrement() % BenchmarkApp.USERS;
+        return mvc.perform(get("/api/users/" + id)).andReturn();
+    }
+
+
+    /**
+     * GET "/api/users", the first page.
+     */
+    @Benchmark
+    public MvcResult getAll() throws Exception {
+        return mvc.perform(get("/api/users")).andReturn();
+    }
+
+
+    /**
+     * POST "/api/users" with a new email each time.
+     */
+    @Benchmark
+    public MvcResult addOne() throws Exception {
+        long n = counter.getAndIncrement();
+        User user = new User("jmh" + n + "@example.com", "jmh user " + n);
+        byte[] body = objectMapper.writeValueAsBytes(user);
+        return mvc.perform(post("/api/users").content(body).contentType("application/json")).andReturn();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Each UserDao method against a local Postgres, with 1000 users in the table.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
+import com.example.firstmvn.entities.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserDaoBenchmark {
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private ConfigurableApplicationContext context;
+    private UserDao userDao;
+    private long firstId;
+
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApp.start(false);
+        userDao = context.getBean(UserDao.class);
+        firstId = BenchmarkApp.seedUsers(context);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkApp.stop(context);
+    }
+
+
+    @Benchmark
+    public UserDto getOne() {
+        return userDao.getOne(nextId());
+    }
+
+
+    @Benchmark
+    public UserPage getPage() {
+        return userDao.getPage(20, null);
+    }
+
+
+    /**
+     * Stream the whole table.
+     */
+    @Benchmark
+    public void forEach(Blackhole blackhole) {
+        userDao.forEach(blackhole::consume);
+    }
+
+
+    @Benchmark
+    public User addOne() {
+        long n = counter.getAndIncrement();
+        User user = new User("jmh" + n + "@example.com", "jmh user " + n);
+        userDao.addOne(user);
+        return user;
+    }
+
+
+    @Benchmark
+    public void updateOne() {
+        long id = nextId();
+        userDao.updateOne(new User(id, "bench" + (id - firstId + 1) + "@example.com", "updated " + id));
+    }
+
+
+    @Benchmark
+    public void deleteOne(Row row) {
+        userDao.deleteOne(row.id);
+    }
+
+
+    /**
+     * Cycle through the seeded ids.
+     *
+     * @return
+     */
+    private long nextId() {
+        return firstId + counter.getAndIncrement() % BenchmarkApp.USERS;
+    }
+
+
+    /**
+     * A fresh user for each delete, inserted outside the measured call.
+     */
+    @State(Scope.Thread)
+    public static class Row {
+
+        private long id;
+
+
+        @Setup(Level.Invocation)
+        public void insert(UserDaoBenchmark bench) {
+            long n = bench.counter.getAndIncrement();
+            User user = new User("delete" + n + "@example.com", "delete me");
+            bench.userDao.addOne(user);
+            id = user.getId();
+        }
+    }
+}
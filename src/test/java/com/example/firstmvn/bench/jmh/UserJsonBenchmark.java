@@ -0,0 +1,91 @@
+/**
+ * Jackson serialization and deserialization of User, one and a list of 100. Uses an
+ * ObjectMapper from the same builder Spring Boot uses. No database needed.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.example.firstmvn.entities.User;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class UserJsonBenchmark {
+
+    private static final int LIST_SIZE = 100;
+
+    private ObjectWriter oneWriter;
+    private ObjectWriter listWriter;
+    private ObjectReader oneReader;
+    private ObjectReader listReader;
+    private User user;
+    private List<User> users;
+    private byte[] userJson;
+    private byte[] usersJson;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        TypeReference<List<User>> listType = new TypeReference<>() {};
+        oneWriter = objectMapper.writerFor(User.class);
+        listWriter = objectMapper.writerFor(listType);
+        oneReader = objectMapper.readerFor(User.class);
+        listReader = objectMapper.readerFor(listType);
+        user = new User(1L, "sean@example.com", "sean maxwell");
+        users = new ArrayList<>();
+        for (long i = 0; i < LIST_SIZE; i++) {
+            users.add(new User(i, "user" + i + "@example.com", "user " + i));
+        }
+        userJson = oneWriter.writeValueAsBytes(user);
+        usersJson = listWriter.writeValueAsBytes(users);
+    }
+
+
+    @Benchmark
+    public byte[] serializeOne() throws Exception {
+        return oneWriter.writeValueAsBytes(user);
+    }
+
+
+    @Benchmark
+    public byte[] serializeList() throws Exception {
+        return listWriter.writeValueAsBytes(users);
+    }
+
+
+    @Benchmark
+    public User deserializeOne() throws Exception {
+        return oneReader.readValue(userJson);
+    }
+
+
+    @Benchmark
+    public List<User> deserializeList() throws Exception {
+        return listReader.readValue(usersJson);
+    }
+}
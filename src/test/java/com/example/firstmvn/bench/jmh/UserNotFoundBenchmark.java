@@ -0,0 +1,131 @@
+/**
+ * A scanner probing ids that don't exist. notFound() is the whole 404 path through MockMvc, with
+ * ControllerAdvisor logging at INFO as it does in production. The other two price the exception
+ * alone, thrown 100 frames deep like under the DispatcherServlet: stackTrace() is the
+ * EntityNotFoundException UserDao used to throw, stackless() the NotFoundException it throws now.
+ * Compare notFound() with a commit before the change for the whole before/after.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityNotFoundException;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.exceptions.NotFoundException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserNotFoundBenchmark {
+
+    private static final int DEPTH = 100;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private ConfigurableApplicationContext context;
+    private MockMvc mvc;
+    private long missingId;
+
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApp.start(
+            true,
+            "--logging.level.com.example.firstmvn.other.ControllerAdvisor=info",
+            // Each probe is a new id, don't let the cache fill up with them
+            "--users.cache.not-found-ttl=0s"
+        );
+        mvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+        missingId = BenchmarkApp.seedUsers(context) + BenchmarkApp.USERS;
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkApp.stop(context);
+    }
+
+
+    /**
+     * GET "/api/users/{id}" for a different missing id each time.
+     */
+    @Benchmark
+    public MvcResult notFound() throws Exception {
+        return mvc.perform(get("/api/users/" + (missingId + counter.getAndIncrement()))).andReturn();
+    }
+
+
+    /**
+     * Throw and catch the exception UserDao used to throw.
+     */
+    @Benchmark
+    public RuntimeException stackTrace() {
+        return throwAt(DEPTH, true);
+    }
+
+
+    /**
+     * Throw and catch the exception UserDao throws now.
+     */
+    @Benchmark
+    public RuntimeException stackless() {
+        return throwAt(DEPTH, false);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Recurse down to the depth, throw there and catch at the top.
+     *
+     * @param depth
+     * @param withStack
+     * @return
+     */
+    private RuntimeException throwAt(int depth, boolean withStack) {
+        try {
+            recurse(depth, withStack, counter.getAndIncrement());
+            return null;
+        } catch (RuntimeException ex) {
+            return ex;
+        }
+    }
+
+
+    private static void recurse(int depth, boolean withStack, long id) {
+        if (depth > 0) {
+            recurse(depth - 1, withStack, id);
+            return;
+        }
+        String msg = UserDao.getIdNotFoundMsg(id);
+        throw withStack ? new EntityNotFoundException(msg) : new NotFoundException(msg);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * The read paths as they are, DTO projections in read-only transactions, against loading
+ * managed User entities in a read-write transaction like they used to. Run with "-prof gc" (the
+ * jmh profile's default) to compare the allocation rate too.
+ */
+
+package com.example.firstmvn.bench.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.repositories.UserRepo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserReadBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    private static final String PAGE_QUERY = "SELECT u FROM User u ORDER BY u.id";
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private ConfigurableApplicationContext context;
+    private UserDao userDao;
+    private UserRepo userRepo;
+    private EntityManagerFactory entityManagerFactory;
+    private TransactionTemplate txTemplate;
+    private long firstId;
+
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApp.start(false, "--users.page.max-size=" + PAGE_SIZE);
+        userDao = context.getBean(UserDao.class);
+        userRepo = context.getBean(UserRepo.class);
+        entityManagerFactory = context.getBean(EntityManagerFactory.class);
+        txTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        firstId = BenchmarkApp.seedUsers(context);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkApp.stop(context);
+    }
+
+
+    @Benchmark
+    public UserDto getOne() {
+        return userDao.getOne(nextId());
+    }
+
+
+    @Benchmark
+    public User getOneEntity() {
+        long id = nextId();
+        return txTemplate.execute(status -> userRepo.findById(id).orElseThrow());
+    }
+
+
+    @Benchmark
+    public UserPage getPage() {
+        return userDao.getPage(PAGE_SIZE, null);
+    }
+
+
+    /**
+     * The query UserDao.getPage() used to run.
+     */
+    @Benchmark
+    public List<User> getPageEntity() {
+        return txTemplate.execute(status -> EntityManagerFactoryUtils
+            .getTransactionalEntityManager(entityManagerFactory)
+            .createQuery(PAGE_QUERY, User.class)
+            .setMaxResults(PAGE_SIZE + 1)
+            .getResultList());
+    }
+
+
+    /**
+     * Cycle through the seeded ids.
+     *
+     * @return
+     */
+    private long nextId() {
+        return firstId + counter.getAndIncrement() % BenchmarkApp.USERS;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Integration test for admission control under overload. Every SQL statement is slowed down to
+ * stand in for a struggling Postgres, then requests arrive at a fixed rate (open model) above what
+ * the limit lets through. The surplus has to be turned away quickly instead of queueing, so the
+ * admitted requests keep a bounded latency.
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.repositories.UserRepo;
+
+import static com.example.firstmvn.other.ConcurrencyLimiter.ENDPOINT_TAG;
+import static com.example.firstmvn.other.ConcurrencyLimiter.IN_FLIGHT_GAUGE;
+import static com.example.firstmvn.other.ConcurrencyLimiter.LIMIT_GAUGE;
+import static com.example.firstmvn.other.ConcurrencyLimiter.REJECTED_COUNTER;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class AdmissionControlTests {
+
+    private static final long SQL_DELAY_MS = 200;
+    private static final int LIMIT = 2;
+    private static final long QUEUE_TIMEOUT_MS = 100;
+    // 2 at a time at 200ms each is 10 requests a second, the pool of 10 could do 50
+    private static final int RATE = 60;
+    private static final Duration WARMUP = Duration.ofSeconds(2);
+    private static final Duration DURATION = Duration.ofSeconds(3);
+    // Queue timeout plus the request, with room for a busy CI machine
+    private static final long MAX_P99_MS = 800;
+
+    private ConfigurableApplicationContext node;
+    private User savedUser;
+    private HttpClient client;
+
+
+    /**
+     * Start a node with a small limit on every endpoint, no cache and slow SQL.
+     */
+    @BeforeEach
+    void setUp() {
+        node = new SpringApplicationBuilder(Main.class)
+            .properties(
+                "server.port=0",
+                "spring.devtools.restart.enabled=false",
+                "users.cache.enabled=false",
+                "app.admission.enabled=true",
+                "app.admission.default-limit=" + LIMIT,
+                "app.admission.queue-size=" + LIMIT,
+                "app.admission.queue-timeout=" + QUEUE_TIMEOUT_MS + "ms",
+                "app.admission.retry-after=2s"
+            )
+            .run();
+        client = HttpClient.newHttpClient();
+        savedUser = node.getBean(UserRepo.class).save(new User("sean@example.com", "sean maxwell"));
+        // The SQL log's proxy runs listeners around every statement
+        ((ProxyDataSource) node.getBean(DataSource.class)).addListener(new QueryExecutionListener() {
+
+            @Override
+            public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+                try {
+                    Thread.sleep(SQL_DELAY_MS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+
+            @Override
+            public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+            }
+        });
+    }
+
+
+    /**
+     * Clean up dummy data and stop the node.
+     */
+    @AfterEach
+    void cleanUp() {
+        node.getBean(UserRepo.class).deleteAllInBatch();
+        node.close();
+    }
+
+
+    /**
+     * Test the surplus gets 503s with "Retry-After" while p99 of the admitted requests stays
+     * bounded, and the limiter's metrics add up.
+     */
+    @Test
+    void overload() throws Exception {
+        // Same load once to warm up the JIT and connections, it skews the tail otherwise
+        sendAtRate(WARMUP, new ConcurrentHistogram(3), new AtomicLong(), new CopyOnWriteArrayList<>());
+        double rejectedBefore = getRejectedCount();
+        Histogram admitted = new ConcurrentHistogram(3);
+        AtomicLong rejected = new AtomicLong();
+        List<String> unexpected = new CopyOnWriteArrayList<>();
+        sendAtRate(DURATION, admitted, rejected, unexpected);
+        long p99Ms = admitted.getValueAtPercentile(99) / 1_000_000;
+        System.out.printf("admission control: admitted=%d rejected=%d admitted p50=%dms p99=%dms%n",
+            admitted.getTotalCount(), rejected.get(), admitted.getValueAtPercentile(50) / 1_000_000, p99Ms);
+        assertEquals(List.of(), unexpected);
+        assertTrue(admitted.getTotalCount() > 0);
+        assertTrue(rejected.get() > 0, "Nothing was rejected, the node wasn't overloaded");
+        assertTrue(p99Ms < MAX_P99_MS, "Admitted p99 was " + p99Ms + "ms");
+        // Metrics
+        MeterRegistry meterRegistry = node.getBean(MeterRegistry.class);
+        assertEquals(rejected.get(), (long) (getRejectedCount() - rejectedBefore));
+        assertEquals(LIMIT, meterRegistry.get(LIMIT_GAUGE).tag(ENDPOINT_TAG, "getOne").gauge().value());
+        assertEquals(0, meterRegistry.get(IN_FLIGHT_GAUGE).tag(ENDPOINT_TAG, "getOne").gauge().value());
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Fetch the saved user at a fixed rate, whether or not earlier requests came back, and wait
+     * for every response.
+     *
+     * @param duration
+     * @param admitted latency of the 200s
+     * @param rejected 503s with "Retry-After"
+     * @param unexpected any other response
+     */
+    private void sendAtRate(
+        Duration duration,
+        Histogram admitted,
+        AtomicLong rejected,
+        List<String> unexpected
+    ) throws Exception {
+        String port = node.getEnvironment().getProperty("local.server.port");
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/users/" +
+            savedUser.getId())).build();
+        List<CompletableFuture<?>> responses = new CopyOnWriteArrayList<>();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(() -> {
+            long start = System.nanoTime();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenAccept(resp -> {
+                String retryAfter = resp.headers().firstValue("Retry-After").orElse(null);
+                if (resp.statusCode() == 200) {
+                    admitted.recordValue(System.nanoTime() - start);
+                } else if (resp.statusCode() == 503 && "2".equals(retryAfter)) {
+                    rejected.incrementAndGet();
+                } else {
+                    unexpected.add(resp.statusCode() + " " + resp.headers().map());
+                }
+            }));
+        }, 0, TimeUnit.SECONDS.toNanos(1) / RATE, TimeUnit.NANOSECONDS);
+        Thread.sleep(duration.toMillis());
+        scheduler.shutdownNow();
+        CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Requests to getOne rejected so far, for any reason.
+     *
+     * @return
+     */
+    private double getRejectedCount() {
+        return node.getBean(MeterRegistry.class).get(REJECTED_COUNTER).tag(ENDPOINT_TAG, "getOne").counters()
+            .stream()
+            .mapToDouble(counter -> counter.count())
+            .sum();
+    }
+}
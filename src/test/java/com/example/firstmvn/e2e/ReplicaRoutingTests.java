@@ -0,0 +1,177 @@
+/**
+ * Integration test for sending reads to a replica. The "replica" is a second database on the same
+ * server that nothing replicates to, so where a row can be read from shows which database served
+ * the read.
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.repositories.UserRepo;
+import com.example.firstmvn.services.UserService;
+
+import static com.example.firstmvn.other.ReplicaRouter.PRIMARY;
+import static com.example.firstmvn.other.ReplicaRouter.ROUTE_COUNTER;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class ReplicaRoutingTests {
+
+    private static final String PRIMARY_URL = "jdbc:postgresql://localhost:5432/practice_e2e";
+    private static final String REPLICA_DB = "practice_e2e_replica";
+    private static final String REPLICA_URL = "jdbc:postgresql://localhost:5432/" + REPLICA_DB;
+    private static final String USERNAME = "practice";
+    private static final String PASSWORD = "password";
+
+    private ConfigurableApplicationContext node;
+    private UserService userService;
+    private MeterRegistry meterRegistry;
+
+
+    /**
+     * Create the replica database if it's missing and bring its schema up to date.
+     */
+    @BeforeAll
+    static void createReplica() throws SQLException {
+        try (Connection con = DriverManager.getConnection(PRIMARY_URL, USERNAME, PASSWORD);
+             PreparedStatement stmt = con.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            stmt.setString(1, REPLICA_DB);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    try (Statement create = con.createStatement()) {
+                        create.execute("CREATE DATABASE " + REPLICA_DB);
+                    }
+                }
+            }
+        }
+        Flyway.configure().dataSource(REPLICA_URL, USERNAME, PASSWORD).load().migrate();
+    }
+
+
+    /**
+     * Start a node reading from the replica, without the cache or the read-your-writes window so
+     * every read goes to the database.
+     */
+    @BeforeEach
+    void setUp() {
+        node = new SpringApplicationBuilder(Main.class)
+            .properties(
+                "server.port=0",
+                "spring.devtools.restart.enabled=false",
+                "users.cache.enabled=false",
+                "app.replicas.enabled=true",
+                "app.replicas.urls=" + REPLICA_URL,
+                "app.replicas.read-your-writes-window=0s"
+            )
+            .run();
+        userService = node.getBean(UserService.class);
+        meterRegistry = node.getBean(MeterRegistry.class);
+    }
+
+
+    /**
+     * Clean up dummy data in both databases and stop the node.
+     */
+    @AfterEach
+    void cleanUp() throws SQLException {
+        node.getBean(UserRepo.class).deleteAllInBatch();
+        node.close();
+        replicaUpdate("DELETE FROM main.users");
+    }
+
+
+    /**
+     * Test reads are served from the replica and writes go to the primary.
+     */
+    @Test
+    void readsFromReplica() throws Exception {
+        long replicaReads = routeCount("replica-1");
+        // Only on the primary
+        var primaryUser = new User("primary@example.com", "primary");
+        userService.addOne(primaryUser);
+        assertEquals(1, node.getBean(JdbcTemplate.class).queryForObject(
+            "SELECT count(*) FROM main.users WHERE id = ?", Integer.class, primaryUser.getId()));
+        assertThrows(NotFoundException.class, () -> userService.getOne(primaryUser.getId()));
+        // Only on the replica
+        replicaUpdate("INSERT INTO main.users (email, name, created) VALUES ('replica@example.com', " +
+            "'replica', CURRENT_DATE)");
+        var page = userService.getAll(10, null);
+        assertEquals(1, page.getUsers().size());
+        UserDto replicaUser = page.getUsers().get(0);
+        assertEquals("replica", replicaUser.getName());
+        assertEquals("replica", userService.getOne(replicaUser.getId()).getName());
+        // Writes still go to the primary
+        assertThrows(NotFoundException.class, () -> userService.deleteOne(replicaUser.getId()));
+        assertEquals(replicaReads + 3, routeCount("replica-1"));
+    }
+
+
+    /**
+     * Test the replica pool publishes the same Hikari metrics as the primary, and connections
+     * asked for with credentials are routed too.
+     */
+    @Test
+    void replicaPoolMetrics() throws Exception {
+        assertNotNull(meterRegistry.find("hikaricp.connections.max").tag("pool", "replica-1").gauge());
+        assertNotNull(meterRegistry.find("hikaricp.connections.max").tag("pool", PRIMARY).gauge());
+        long primaryConnections = routeCount(PRIMARY);
+        try (Connection con = node.getBean(DataSource.class).getConnection("ignored", "ignored")) {
+            con.createStatement().execute("SELECT 1");
+        }
+        assertEquals(primaryConnections + 1, routeCount(PRIMARY));
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Connections handed out from one pool.
+     *
+     * @param pool
+     * @return
+     */
+    private long routeCount(String pool) {
+        return (long) meterRegistry.counter(ROUTE_COUNTER, "pool", pool).count();
+    }
+
+
+    /**
+     * Run a statement on the replica database directly.
+     *
+     * @param sql
+     */
+    private static void replicaUpdate(String sql) throws SQLException {
+        try (Connection con = DriverManager.getConnection(REPLICA_URL, USERNAME, PASSWORD);
+             Statement stmt = con.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Count the SQL statements a test runs, so each endpoint can be held to a fixed number of round
+ * trips. Wraps the DataSource with datasource-proxy and records the statements run on the thread
+ * that called start(), so the cache listener and other background work aren't counted. MockMvc
+ * runs requests on the test thread. Add to a test with @Import(SqlBudget.class).
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.support.ProxyDataSource;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+public class SqlBudget implements BeanPostProcessor, QueryExecutionListener {
+
+    private final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile Thread thread;
+
+
+    /**
+     * Start counting on the current thread, forgetting earlier statements.
+     */
+    public void start() {
+        statements.clear();
+        thread = Thread.currentThread();
+    }
+
+
+    /**
+     * Check exactly this many statements ran since start(). Lists them if not.
+     *
+     * @param expected
+     */
+    public void assertStatements(int expected) {
+        List<String> ran;
+        synchronized (statements) {
+            ran = new ArrayList<>(statements);
+        }
+        assertEquals(expected, ran.size(), () -> {
+            StringBuilder msg = new StringBuilder("SQL budget is " + expected + " statements, ran " +
+                ran.size() + ":");
+            for (int i = 0; i < ran.size(); i++) {
+                msg.append("\n  ").append(i + 1).append(". ").append(ran.get(i));
+            }
+            return msg.toString();
+        });
+    }
+
+
+    /**
+     * Wrap the DataSource, or join the proxy if it's already wrapped (see SqlLogger).
+     */
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof ProxyDataSource) {
+            ((ProxyDataSource) bean).addListener(this);
+        } else if (bean instanceof DataSource) {
+            return ProxyDataSourceBuilder.create((DataSource) bean)
+                .name(beanName)
+                .listener(this)
+                .build();
+        }
+        return bean;
+    }
+
+
+    @Override
+    public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+    }
+
+
+    /**
+     * Record each statement. A JDBC batch is one round trip so it counts once.
+     */
+    @Override
+    public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        if (Thread.currentThread() != thread) {
+            return;
+        }
+        for (QueryInfo queryInfo : queryInfoList) {
+            String sql = queryInfo.getQuery().trim().replaceAll("\\s+", " ");
+            if (execInfo.isBatch()) {
+                sql += " [batch of " + execInfo.getBatchSize() + "]";
+            }
+            statements.add(sql);
+        }
+    }
+}
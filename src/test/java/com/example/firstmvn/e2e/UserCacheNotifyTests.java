@@ -0,0 +1,150 @@
+/**
+ * Integration test for evicting users cached on one node after another node writes them. Starts
+ * two application contexts against the same database.
+ */
+
+package com.example.firstmvn.e2e;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.repositories.UserRepo;
+import com.example.firstmvn.services.UserChangeListener;
+import com.example.firstmvn.services.UserService;
+
+import static com.example.firstmvn.daos.UserDao.getIdNotFoundMsg;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class UserCacheNotifyTests {
+
+    private static final long WAIT_MS = 5000;
+
+    private ConfigurableApplicationContext nodeA;
+    private ConfigurableApplicationContext nodeB;
+    private UserService serviceA;
+    private UserService serviceB;
+    private User savedUser;
+
+
+    /**
+     * Start two nodes and save a user.
+     */
+    @BeforeEach
+    void setUp() {
+        nodeA = startNode();
+        nodeB = startNode();
+        serviceA = nodeA.getBean(UserService.class);
+        serviceB = nodeB.getBean(UserService.class);
+        savedUser = new User("sean@example.com", "sean maxwell");
+        serviceA.addOne(savedUser);
+    }
+
+
+    /**
+     * Clean up dummy data and stop the nodes.
+     */
+    @AfterEach
+    void cleanUp() {
+        nodeA.getBean(UserRepo.class).deleteAllInBatch();
+        nodeA.close();
+        nodeB.close();
+    }
+
+
+    /**
+     * Test node B stops serving its cached copy after node A updates the user.
+     */
+    @Test
+    void updateOnOtherNode() throws Exception {
+        // Cache on node B
+        assertEquals(savedUser.getName(), serviceB.getOne(savedUser.getId()).getName());
+        // Update on node A
+        savedUser.setName("foo bar");
+        serviceA.updateOne(savedUser, null);
+        // Test node B picks it up
+        awaitNameOnB("foo bar");
+    }
+
+
+    /**
+     * Test node B keeps listening after a notification it can't read.
+     */
+    @Test
+    void badNotification() throws Exception {
+        nodeA.getBean(JdbcTemplate.class).execute("NOTIFY " + UserChangeListener.CHANNEL + ", 'foo'");
+        // Give it time to reconnect
+        Thread.sleep(1000);
+        // Cache on node B, update on node A
+        serviceB.getOne(savedUser.getId());
+        savedUser.setName("foo bar");
+        serviceA.updateOne(savedUser, null);
+        // Test node B picks it up
+        awaitNameOnB("foo bar");
+    }
+
+
+    /**
+     * Test node B stops serving its cached copy after node A deletes the user.
+     */
+    @Test
+    void deleteOnOtherNode() throws Exception {
+        // Cache on node B
+        serviceB.getOne(savedUser.getId());
+        // Delete on node A
+        serviceA.deleteOne(savedUser.getId());
+        // Test node B picks it up
+        var errMsg = getIdNotFoundMsg(savedUser.getId());
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                serviceB.getOne(savedUser.getId());
+                Thread.sleep(10);
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getMessage().contains(errMsg));
+                return;
+            }
+        }
+        throw new AssertionError("Node B still has the user after " + WAIT_MS + "ms");
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Wait for node B to return the saved user with the name.
+     *
+     * @param name
+     */
+    private void awaitNameOnB(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!name.equals(serviceB.getOne(savedUser.getId()).getName())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Node B still has the old name after " + WAIT_MS + "ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+
+    /**
+     * Start a node on a random port.
+     * 
+     * @return
+     */
+    private static ConfigurableApplicationContext startNode() {
+        return new SpringApplicationBuilder(Main.class)
+            .properties("server.port=0", "spring.devtools.restart.enabled=false")
+            .run();
+    }
+}
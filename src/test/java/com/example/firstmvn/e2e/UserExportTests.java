@@ -0,0 +1,93 @@
+/**
+ * Integration test for exporting all users as NDJSON. The test JVM runs with a small heap (see the
+ * surefire "argLine" in the pom) so this fails if the export holds the table in memory.
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.firstmvn.Main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@SpringBootTest(classes = Main.class, webEnvironment = WebEnvironment.RANDOM_PORT)
+public class UserExportTests {
+
+    private static final int NUM_USERS = 300_000;
+
+    private static final String SEED_SQL =
+        "INSERT INTO main.users (email, name, pwdHash, created) " +
+        "SELECT 'export' || g || '@example.com', 'export user ' || g, '', CURRENT_DATE " +
+        "FROM generate_series(1, ?) AS g";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @LocalServerPort
+    private int port;
+
+
+    /**
+     * Constructor()
+     * 
+     * @param jdbcTemplate
+     */
+    @Autowired
+    public UserExportTests(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+
+    /**
+     * Seed the users table in one statement.
+     */
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update(SEED_SQL, NUM_USERS);
+    }
+
+
+    /**
+     * Clean up dummy data.
+     */
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM main.users");
+    }
+
+
+    /**
+     * Stream every user and check each line is one JSON record.
+     */
+    @Test
+    void export() throws Exception {
+        var client = HttpClient.newHttpClient();
+        var req = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/users/export"))
+                    .GET()
+                    .build();
+        var resp = client.send(req, HttpResponse.BodyHandlers.ofLines());
+        assertEquals(200, resp.statusCode());
+        // Count lines without keeping them
+        var count = new AtomicLong();
+        resp.body().forEach(line -> {
+            assertTrue(line.startsWith("{") && line.endsWith("}"), line);
+            count.incrementAndGet();
+        });
+        assertEquals(NUM_USERS, count.get());
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Integration test for coalescing concurrent inserts. The window is long enough that users added
+ * at the same time share a statement.
+ */
+
+package com.example.firstmvn.e2e;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.daos.UserInsertCoalescer;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.BadRequestException;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.repositories.UserRepo;
+import com.example.firstmvn.services.UserService;
+
+import static com.example.firstmvn.daos.UserDao.getAlreadyPersistsMsg;
+import static com.example.firstmvn.daos.UserInsertCoalescer.BATCH_SUMMARY;
+import static com.example.firstmvn.daos.UserInsertCoalescer.FALLBACK_COUNTER;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class UserInsertCoalescingTests {
+
+    private static final int USERS = 20;
+
+    private ConfigurableApplicationContext node;
+    private UserService userService;
+    private ExecutorService pool;
+
+
+    /**
+     * Start a node that coalesces inserts.
+     */
+    @BeforeEach
+    void setUp() {
+        node = new SpringApplicationBuilder(Main.class)
+            .properties(
+                "server.port=0",
+                "spring.devtools.restart.enabled=false",
+                "users.insert-coalescing.enabled=true",
+                "users.insert-coalescing.window=200ms"
+            )
+            .run();
+        userService = node.getBean(UserService.class);
+        pool = Executors.newCachedThreadPool();
+    }
+
+
+    /**
+     * Clean up dummy data and stop the node.
+     */
+    @AfterEach
+    void cleanUp() {
+        pool.shutdownNow();
+        node.getBean(UserRepo.class).deleteAllInBatch();
+        node.close();
+    }
+
+
+    /**
+     * Test concurrent inserts share statements and each caller gets its own id or conflict: one
+     * email is taken already and one is sent twice.
+     */
+    @Test
+    void addOne_concurrent() throws Exception {
+        userService.addOne(new User("taken@example.com", "taken"));
+        long batches = getBatchSummary().count();
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            users.add(new User("user" + i + "@example.com", "user " + i));
+        }
+        users.add(new User("taken@example.com", "taken again"));
+        users.add(new User("user0@example.com", "user 0 again"));
+        List<Future<Void>> results = addAll(users);
+        // The taken email conflicts, so does whichever "user0" came second
+        assertConflict(results.get(USERS), users.get(USERS));
+        int winner = succeeded(results.get(0)) ? 0 : USERS + 1;
+        int loser = (winner == 0) ? USERS + 1 : 0;
+        assertConflict(results.get(loser), users.get(loser));
+        // Everyone else got a different id
+        var ids = new HashSet<Long>();
+        for (int i = 0; i < USERS; i++) {
+            int n = (i == 0) ? winner : i;
+            results.get(n).get();
+            assertTrue(users.get(n).getId() > 0);
+            ids.add(users.get(n).getId());
+        }
+        assertEquals(USERS, ids.size());
+        assertEquals(USERS + 1, node.getBean(UserRepo.class).count());
+        assertTrue(getBatchSummary().count() - batches < users.size(),
+            "Inserts weren't coalesced");
+    }
+
+
+    /**
+     * Test a user the database rejects only fails its own insert, and the batch it was in is
+     * counted as a fallback.
+     */
+    @Test
+    void addOne_rejected() throws Exception {
+        var fallbacks = node.getBean(MeterRegistry.class).get(FALLBACK_COUNTER).counter();
+        double before = fallbacks.count();
+        var good = new User("good@example.com", "good");
+        var bad = new User("bad@example.com", "x".repeat(300));
+        List<Future<Void>> results = addAll(List.of(good, bad));
+        results.get(0).get();
+        assertTrue(good.getId() > 0);
+        var ex = assertThrowsCause(results.get(1));
+        assertTrue(ex instanceof BadRequestException, ex.toString());
+        assertEquals(1, node.getBean(UserRepo.class).count());
+        assertTrue(fallbacks.count() > before);
+    }
+
+
+    /**
+     * Test users without an email aren't taken for duplicates of each other.
+     */
+    @Test
+    void addOne_nullEmails() throws Exception {
+        var users = List.of(new User((String) null, "no email 1"), new User((String) null, "no email 2"));
+        for (Future<Void> result : addAll(users)) {
+            result.get();
+        }
+        assertTrue(users.get(0).getId() > 0 && users.get(1).getId() > 0);
+        assertEquals(2, node.getBean(UserRepo.class).count());
+    }
+
+
+    /**
+     * Test inserts still go through once the coalescer has stopped.
+     */
+    @Test
+    void addOne_stopped() throws Exception {
+        node.getBean(UserInsertCoalescer.class).stop();
+        var user = new User("late@example.com", "late");
+        addAll(List.of(user)).get(0).get(10, TimeUnit.SECONDS);
+        assertTrue(user.getId() > 0);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Add every user from its own thread, all starting at once.
+     *
+     * @param users
+     * @return
+     */
+    private List<Future<Void>> addAll(List<User> users) {
+        var start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        for (User user : users) {
+            Callable<Void> task = () -> {
+                start.await();
+                userService.addOne(user);
+                return null;
+            };
+            results.add(pool.submit(task));
+        }
+        start.countDown();
+        return results;
+    }
+
+
+    /**
+     * Check an insert failed with the conflict UserDao gives.
+     *
+     * @param result
+     * @param user
+     */
+    private static void assertConflict(Future<Void> result, User user) throws InterruptedException {
+        var ex = assertThrowsCause(result);
+        assertTrue(ex instanceof ConflictException, ex.toString());
+        assertEquals(getAlreadyPersistsMsg(user.getId(), user.getEmail()), ex.getMessage());
+    }
+
+
+    /**
+     * Wait for a task and check if it succeeded.
+     *
+     * @param result
+     * @return
+     */
+    private static boolean succeeded(Future<Void> result) throws InterruptedException {
+        try {
+            result.get();
+            return true;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Wait for a task that should fail.
+     *
+     * @param result
+     * @return why it failed
+     */
+    private static Throwable assertThrowsCause(Future<Void> result) throws InterruptedException {
+        try {
+            result.get();
+        } catch (ExecutionException ex) {
+            return ex.getCause();
+        }
+        throw new AssertionError("Expected the insert to fail");
+    }
+
+
+    /**
+     * Sizes of the batches inserted so far.
+     *
+     * @return
+     */
+    private DistributionSummary getBatchSummary() {
+        return node.getBean(MeterRegistry.class).get(BATCH_SUMMARY).summary();
+    }
+}
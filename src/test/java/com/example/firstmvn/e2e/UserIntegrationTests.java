@@ -13,6 +13,9 @@ import java.util.Optional;
 
 import com.example.firstmvn.Main;
 import com.example.firstmvn.controllers.UserController;
+import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.dtos.UserBatchOp;
+import com.example.firstmvn.dtos.UserDto;
 import com.example.firstmvn.entities.User;
 import com.example.firstmvn.repositories.UserRepo;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -20,6 +23,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import static com.example.firstmvn.daos.UserDao.getAlreadyPersistsMsg;
 import static com.example.firstmvn.daos.UserDao.getIdNotFoundMsg;
 import static com.example.firstmvn.daos.UserDao.getEmailAlreadyTakenMsg;
+import static com.example.firstmvn.daos.UserDao.getInvalidUserMsg;
+import static com.example.firstmvn.daos.UserDao.getVersionChangedMsg;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -28,32 +33,45 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
 
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 @SpringBootTest(classes = Main.class)
 @AutoConfigureMockMvc
 @ContextConfiguration(classes = {ServletWebServerApplicationContext.class})
+@Import(SqlBudget.class)
 public class UserIntegrationTests {
 
     private final String DUMMY_EMAIL = "foo@bar.com";
     private final String DUMMY_NAME = "foo bar";
 
     private final UserRepo userRepo;
+    private final UserDao userDao;
+    private final NamedParameterJdbcTemplate jdbcTemplate;
     private final MockMvc mvc;
+    private final SqlBudget sqlBudget;
 
     private List<User> savedUsers;
     private User savedUser;
@@ -64,11 +82,24 @@ public class UserIntegrationTests {
      * Constructor()
      * 
      * @param userRepo
+     * @param userDao
+     * @param jdbcTemplate
+     * @param mvc
+     * @param sqlBudget
      */
     @Autowired
-    public UserIntegrationTests(UserRepo userRepo, MockMvc mvc) {
+    public UserIntegrationTests(
+        UserRepo userRepo,
+        UserDao userDao,
+        NamedParameterJdbcTemplate jdbcTemplate,
+        MockMvc mvc,
+        SqlBudget sqlBudget
+    ) {
         this.userRepo = userRepo;
+        this.userDao = userDao;
+        this.jdbcTemplate = jdbcTemplate;
         this.mvc = mvc;
+        this.sqlBudget = sqlBudget;
     }
 
 
@@ -106,12 +137,161 @@ public class UserIntegrationTests {
         var req = get("/api/users")
                     .contentType("application/json");
         // Perform test
+        sqlBudget.start();
         mvc.perform(req)
-            .andExpect(jsonPath("[*].id").exists())
-            .andExpect(jsonPath("[0].name").value(users.get(0).getName()))
-            .andExpect(jsonPath("[1].name").value(users.get(1).getName()))
-            .andExpect(jsonPath("[2].name").value(users.get(2).getName()))
+            .andExpect(jsonPath("users[*].id").exists())
+            .andExpect(jsonPath("users[0].name").value(users.get(0).getName()))
+            .andExpect(jsonPath("users[1].name").value(users.get(1).getName()))
+            .andExpect(jsonPath("users[2].name").value(users.get(2).getName()))
+            .andExpect(jsonPath("users[*].pwdHash").isEmpty())
+            .andExpect(jsonPath("next").isEmpty())
             .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * Test paging through users with "limit" and "after".
+     */
+    @Test
+    void getAll_paged() throws Exception {
+        var users = userRepo.findAll(Sort.by("id"));
+        // Fetch first page
+        var req = get("/api/users?limit=2")
+                    .contentType("application/json");
+        mvc.perform(req)
+            .andExpect(jsonPath("users.length()").value(2))
+            .andExpect(jsonPath("users[0].name").value(users.get(0).getName()))
+            .andExpect(jsonPath("users[1].name").value(users.get(1).getName()))
+            .andExpect(jsonPath("next").value(users.get(1).getId()))
+            .andExpect(status().isOk());
+        // Fetch second page
+        req = get("/api/users?limit=2&after=" + users.get(1).getId())
+                .contentType("application/json");
+        mvc.perform(req)
+            .andExpect(jsonPath("users.length()").value(1))
+            .andExpect(jsonPath("users[0].name").value(users.get(2).getName()))
+            .andExpect(jsonPath("next").isEmpty())
+            .andExpect(status().isOk());
+    }
+
+
+    /**
+     * Test a page is a 304 until a user on it is updated.
+     */
+    @Test
+    void getAll_notModified() throws Exception {
+        var etag = mvc.perform(get("/api/users"))
+            .andExpect(status().isOk())
+            .andExpect(header().exists(HttpHeaders.ETAG))
+            .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        // Same page
+        mvc.perform(get("/api/users").header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(status().isNotModified())
+            .andExpect(content().string(""));
+        // Update a user on the page
+        savedUser.setName(DUMMY_NAME);
+        mvc.perform(put("/api/users").content(asJsonString(savedUser)).contentType("application/json"))
+            .andExpect(status().isOk());
+        mvc.perform(get("/api/users").header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, not(etag)));
+    }
+
+
+    /**
+     * Test a short search only matches prefixes, ignoring case.
+     */
+    @Test
+    void search_prefix() throws Exception {
+        var req = get("/api/users/search?q=JA")
+                    .contentType("application/json");
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(jsonPath("users[*].name").value(contains("jane doe")))
+            .andExpect(jsonPath("users[*].pwdHash").isEmpty())
+            .andExpect(jsonPath("next").isEmpty())
+            .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * Test a search matches substrings of the name and email, prefix matches first.
+     */
+    @Test
+    void search_substring() throws Exception {
+        userRepo.save(new User("maxine@example.com", "maxine"));
+        // "sean maxwell" has an older id but only contains "max"
+        mvc.perform(get("/api/users/search?q=Max"))
+            .andExpect(jsonPath("users[*].name").value(contains("maxine", "sean maxwell")))
+            .andExpect(status().isOk());
+        mvc.perform(get("/api/users/search?q=yahoo"))
+            .andExpect(jsonPath("users[*].name").value(contains("jane doe")))
+            .andExpect(status().isOk());
+    }
+
+
+    /**
+     * Test each tier keeps its best matches when there are more than "candidates": the first
+     * name and the first email in index order for prefixes, the most similar for substrings
+     * ("sean maxwell" has a lower id). A user only shows up in its best tier.
+     */
+    @Test
+    void search_candidates() throws Exception {
+        userRepo.save(new User("mia@example.com", "al max"));
+        userRepo.save(new User("maxine@example.com", "maxine"));
+        userRepo.save(new User("max@example.com", "maxwell"));
+        var names = jdbcTemplate.query(UserDao.getSearchSql("max"), UserDao.getSearchParams("max", 10, 0, 1),
+            (rs, i) -> rs.getString("name"));
+        assertEquals(List.of("maxwell", "maxine", "al max"), names);
+    }
+
+
+    /**
+     * Test substrings are still ranked before the cap when there are too many to rank them all.
+     */
+    @Test
+    void search_manyCandidates() throws Exception {
+        for (int i = 0; i < 11; i++) {
+            userRepo.save(new User("omar" + i + "@example.com", "omar " + i));
+        }
+        userRepo.save(new User("lamar@example.com", "la mar"));
+        var names = jdbcTemplate.query(UserDao.getSearchSql("mar"), UserDao.getSearchParams("mar", 10, 0, 1),
+            (rs, i) -> rs.getString("name"));
+        assertEquals(List.of("la mar"), names);
+    }
+
+
+    /**
+     * Test paging through search results with "limit" and "offset".
+     */
+    @Test
+    void search_paged() throws Exception {
+        mvc.perform(get("/api/users/search?q=j&limit=1"))
+            .andExpect(jsonPath("users[*].name").value(contains("jane doe")))
+            .andExpect(jsonPath("next").value(1))
+            .andExpect(status().isOk());
+        mvc.perform(get("/api/users/search?q=j&limit=1&offset=1"))
+            .andExpect(jsonPath("users[*].name").value(contains("john smith")))
+            .andExpect(jsonPath("next").isEmpty())
+            .andExpect(status().isOk());
+    }
+
+
+    /**
+     * Test LIKE wildcards in the search text only match themselves, and empty text is rejected.
+     */
+    @Test
+    void search_badText() throws Exception {
+        mvc.perform(get("/api/users/search").param("q", "%%%"))
+            .andExpect(jsonPath("users").isEmpty())
+            .andExpect(status().isOk());
+        mvc.perform(get("/api/users/search").param("q", "_"))
+            .andExpect(jsonPath("users").isEmpty())
+            .andExpect(status().isOk());
+        mvc.perform(get("/api/users/search").param("q", " "))
+            .andExpect(status().isBadRequest());
     }
 
 
@@ -124,10 +304,30 @@ public class UserIntegrationTests {
         var req = get("/api/users/" + savedUser.getId())
                     .contentType("application/json");
         // Test
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(jsonPath("$.id").value(savedUser.getId()))
             .andExpect(jsonPath("$.name").value(savedUser.getName()))
+            .andExpect(jsonPath("$.pwdHash").doesNotExist())
             .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * Test the user's version is its ETag and a matching "If-None-Match" is a 304.
+     */
+    @Test
+    void getOne_notModified() throws Exception {
+        var etag = "\"" + savedUser.getVersion() + "\"";
+        mvc.perform(get("/api/users/" + savedUser.getId()))
+            .andExpect(header().string(HttpHeaders.ETAG, etag))
+            .andExpect(jsonPath("$.version").value(savedUser.getVersion()))
+            .andExpect(status().isOk());
+        // Test
+        mvc.perform(get("/api/users/" + savedUser.getId()).header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(status().isNotModified())
+            .andExpect(content().string(""));
     }
 
 
@@ -142,8 +342,31 @@ public class UserIntegrationTests {
         var req = get("/api/users/" + id)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(containsString(errMsg)))
+            .andExpect(status().isNotFound());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * Test requests Spring can't handle keep its status codes: a method the route doesn't have,
+     * a body that isn't JSON, a missing parameter and a non-numeric id.
+     */
+    @Test
+    void badRequests() throws Exception {
+        mvc.perform(patch("/api/users"))
+            .andExpect(header().string(HttpHeaders.ALLOW, containsString("GET")))
+            .andExpect(status().isMethodNotAllowed());
+        mvc.perform(post("/api/users").content("foo").contentType("text/plain"))
+            .andExpect(status().isUnsupportedMediaType());
+        mvc.perform(post("/api/users").content("{").contentType("application/json"))
+            .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/users/search"))
+            .andExpect(content().string(containsString("q")))
+            .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/users/foo"))
             .andExpect(status().isBadRequest());
     }
 
@@ -160,11 +383,13 @@ public class UserIntegrationTests {
                     .content(content)
                     .contentType("application/json");
         // Perform test
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(UserController.SUCCESSFUL_POST_MSG))
             .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
         // Test data in db
-        User user = userRepo.findByEmail(unsavedUser.getEmail());
+        UserDto user = userRepo.findByEmail(unsavedUser.getEmail());
         assertEquals(unsavedUser.getEmail(), user.getEmail());
     }
 
@@ -181,9 +406,11 @@ public class UserIntegrationTests {
                     .content(content)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(containsString(errMsg)))
-            .andExpect(status().isBadRequest());
+            .andExpect(status().isConflict());
+        sqlBudget.assertStatements(1);
     }
 
 
@@ -201,9 +428,11 @@ public class UserIntegrationTests {
                     .content(content)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(UserController.SUCCESSFUL_UPDATE_MSG))
             .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
         // Test data in db
         Optional<User> res = userRepo.findById(savedUser.getId());
         assertEquals(DUMMY_EMAIL, res.get().getEmail());
@@ -211,6 +440,81 @@ public class UserIntegrationTests {
     }
 
 
+    /**
+     * Test a cached user isn't stale after it's updated.
+     */
+    @Test
+    void updateOne_notStale() throws Exception {
+        var getReq = get("/api/users/" + savedUser.getId())
+                        .contentType("application/json");
+        mvc.perform(getReq)
+            .andExpect(jsonPath("$.name").value(savedUser.getName()));
+        // Update the cached user
+        savedUser.setName(DUMMY_NAME);
+        var putReq = put("/api/users")
+                        .content(asJsonString(savedUser))
+                        .contentType("application/json");
+        mvc.perform(putReq)
+            .andExpect(status().isOk());
+        // Test the new name comes back
+        mvc.perform(getReq)
+            .andExpect(jsonPath("$.name").value(DUMMY_NAME));
+    }
+
+
+    /**
+     * Test an update with the current ETag in "If-Match" bumps the version.
+     */
+    @Test
+    void updateOne_ifMatch() throws Exception {
+        var etag = "\"" + savedUser.getVersion() + "\"";
+        savedUser.setName(DUMMY_NAME);
+        var req = put("/api/users")
+                    .header(HttpHeaders.IF_MATCH, etag)
+                    .content(asJsonString(savedUser))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(status().isOk());
+        sqlBudget.assertStatements(1);
+        // Test data in db
+        User user = userRepo.findById(savedUser.getId()).get();
+        assertEquals(DUMMY_NAME, user.getName());
+        assertEquals(savedUser.getVersion() + 1, user.getVersion());
+    }
+
+
+    /**
+     * Test a lost update, "If-Match" has an ETag from before someone else's update.
+     */
+    @Test
+    void updateOne_ifMatchStale() throws Exception {
+        var etag = "\"" + savedUser.getVersion() + "\"";
+        // Someone else updates first
+        savedUser.setName("someone else");
+        mvc.perform(put("/api/users").content(asJsonString(savedUser)).contentType("application/json"))
+            .andExpect(status().isOk());
+        // Setup request
+        savedUser.setName(DUMMY_NAME);
+        var req = put("/api/users")
+                    .header(HttpHeaders.IF_MATCH, etag)
+                    .content(asJsonString(savedUser))
+                    .contentType("application/json");
+        var errMsg = getVersionChangedMsg(savedUser.getId(), savedUser.getVersion());
+        // Perform test, the failed update checks the id exists
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(content().string(containsString(errMsg)))
+            .andExpect(status().isPreconditionFailed());
+        sqlBudget.assertStatements(2);
+        // Weak ETags never match
+        mvc.perform(req.header(HttpHeaders.IF_MATCH, "W/" + etag))
+            .andExpect(status().isPreconditionFailed());
+        assertEquals("someone else", userRepo.findById(savedUser.getId()).get().getName());
+    }
+
+
     /**
      * Testing updating one id not found.
      */
@@ -224,9 +528,11 @@ public class UserIntegrationTests {
                     .content(content)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(containsString(errMsg)))
-            .andExpect(status().isBadRequest());
+            .andExpect(status().isNotFound());
+        sqlBudget.assertStatements(1);
     }
 
 
@@ -246,8 +552,28 @@ public class UserIntegrationTests {
                     .content(content)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(containsString(errMsg)))
+            .andExpect(status().isConflict());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * PUT "/api/users" with a name too long for its column. Only a taken email is a conflict.
+     */
+    @Test 
+    void updateOne_nameTooLong() throws Exception {
+        // Setup dummy data
+        savedUser.setName("x".repeat(300));
+        var content = asJsonString(savedUser);
+        // Setup request
+        var req = put("/api/users")
+                    .content(content)
+                    .contentType("application/json");
+        // Perform test 
+        mvc.perform(req)
             .andExpect(status().isBadRequest());
     }
 
@@ -263,15 +589,36 @@ public class UserIntegrationTests {
         var req = delete("/api/users/" + id)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(UserController.SUCCESSFUL_DELETE_MSG))
             .andExpect(status().isOk());
+        // Should be a single DELETE with no SELECTs
+        sqlBudget.assertStatements(1);
         // Test data in db
         Optional<User> user = userRepo.findById(id);
         assertFalse(user.isPresent());
     }
 
 
+    /**
+     * Testing delete many in one statement.
+     */
+    @Test 
+    void deleteMany() throws Exception {
+        var ids = new ArrayList<Long>();
+        userRepo.findAll().forEach(user -> ids.add(user.getId()));
+        ids.add(Long.MAX_VALUE);
+        // Perform test
+        sqlBudget.start();
+        int count = userDao.deleteMany(ids);
+        sqlBudget.assertStatements(1);
+        // Test data in db
+        assertEquals(savedUsers.size(), count);
+        assertEquals(0, userRepo.count());
+    }
+
+
     /**
      * Testing delete one.
      */
@@ -285,9 +632,185 @@ public class UserIntegrationTests {
         var req = delete("/api/users/" + id)
                     .contentType("application/json");
         // Perform test 
+        sqlBudget.start();
         mvc.perform(req)
             .andExpect(content().string(containsString(errMsg)))
+            .andExpect(status().isNotFound());
+        sqlBudget.assertStatements(1);
+    }
+
+
+    /**
+     * Test a batch where every operation succeeds.
+     */
+    @Test
+    void batch() throws Exception {
+        var users = userRepo.findAll(Sort.by("id"));
+        var updated = users.get(0);
+        updated.setName(DUMMY_NAME);
+        // Delete a user then give their email to a new user
+        var ops = List.of(
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.update(updated),
+            UserBatchOp.delete(users.get(1).getId()),
+            UserBatchOp.create(new User(users.get(1).getEmail(), DUMMY_NAME))
+        );
+        // Setup request
+        var req = post("/api/users/batch")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("ok", "ok", "ok", "ok")))
+            .andExpect(jsonPath("[0].id").isNumber())
+            .andExpect(status().isOk());
+        // One lookup, then a JDBC batch per run of same-type operations
+        sqlBudget.assertStatements(5);
+        // Test data in db
+        assertEquals(DUMMY_NAME, userRepo.findById(updated.getId()).get().getName());
+        assertFalse(userRepo.findById(users.get(1).getId()).isPresent());
+        assertEquals(DUMMY_NAME, userRepo.findByEmail(users.get(1).getEmail()).getName());
+        assertEquals(unsavedUser.getName(), userRepo.findByEmail(unsavedUser.getEmail()).getName());
+    }
+
+
+    /**
+     * Test an atomic batch with failures doesn't write anything.
+     */
+    @Test
+    void batch_atomicRollsBack() throws Exception {
+        var ops = List.of(
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.create(new User(savedUser.getEmail(), DUMMY_NAME)),
+            UserBatchOp.delete(Long.MAX_VALUE)
+        );
+        // Setup request
+        var req = post("/api/users/batch")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("skipped", "conflict", "not-found")))
+            .andExpect(jsonPath("[2].message").value(getIdNotFoundMsg(Long.MAX_VALUE)))
+            .andExpect(status().isOk());
+        // The lookup is repeated without the email filter to report every conflict
+        sqlBudget.assertStatements(2);
+        // Test data in db
+        assertEquals(null, userRepo.findByEmail(unsavedUser.getEmail()));
+    }
+
+
+    /**
+     * Test a taken email is still a conflict when the email filter doesn't know about it. The
+     * dummy users are saved through the repo, so the filter hasn't seen their emails.
+     */
+    @Test
+    void batch_emailFilterMiss() throws Exception {
+        var ops = List.of(
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.create(new User(savedUser.getEmail(), DUMMY_NAME))
+        );
+        // Setup request
+        var req = post("/api/users/batch")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("skipped", "conflict")))
+            .andExpect(jsonPath("[1].message").value(getAlreadyPersistsMsg(-1L, savedUser.getEmail())))
+            .andExpect(status().isOk());
+        // The lookup is repeated without the email filter to find the taken email
+        sqlBudget.assertStatements(2);
+        // Test data in db
+        assertEquals(null, userRepo.findByEmail(unsavedUser.getEmail()));
+    }
+
+
+    /**
+     * Test a per-item batch applies the operations that can succeed.
+     */
+    @Test
+    void batch_perItem() throws Exception {
+        var users = userRepo.findAll(Sort.by("id"));
+        var taken = users.get(1);
+        taken.setEmail(users.get(2).getEmail());
+        var ops = List.of(
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.update(taken),
+            UserBatchOp.delete(users.get(0).getId())
+        );
+        // Setup request
+        var req = post("/api/users/batch?atomic=false")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("ok", "conflict", "conflict", "ok")))
+            .andExpect(jsonPath("[2].message").value(getEmailAlreadyTakenMsg(taken.getEmail())))
+            .andExpect(status().isOk());
+        // One lookup, the batches, and the failed update again on its own
+        sqlBudget.assertStatements(5);
+        // Test data in db
+        assertEquals(unsavedUser.getName(), userRepo.findByEmail(unsavedUser.getEmail()).getName());
+        assertFalse(userRepo.findById(users.get(0).getId()).isPresent());
+    }
+
+
+    /**
+     * Test a value the table rejects (a name too long for its column) fails only its operation,
+     * as a bad request rather than a conflict.
+     */
+    @Test
+    void batch_rejected() throws Exception {
+        var tooLong = new User("too.long@example.com", "x".repeat(300));
+        var ops = List.of(
+            UserBatchOp.create(unsavedUser),
+            UserBatchOp.create(tooLong)
+        );
+        // Atomic, the rest is skipped and nothing is written
+        var req = post("/api/users/batch")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("skipped", "bad-request")))
+            .andExpect(jsonPath("[1].message").value(getInvalidUserMsg()))
+            .andExpect(status().isOk());
+        assertEquals(null, userRepo.findByEmail(unsavedUser.getEmail()));
+        // Per item, the rest is applied
+        req = post("/api/users/batch?atomic=false")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        mvc.perform(req)
+            .andExpect(jsonPath("[*].status").value(contains("ok", "bad-request")))
+            .andExpect(status().isOk());
+        assertEquals(unsavedUser.getName(), userRepo.findByEmail(unsavedUser.getEmail()).getName());
+        assertEquals(null, userRepo.findByEmail(tooLong.getEmail()));
+    }
+
+
+    /**
+     * Test a delete that also has a user is rejected instead of guessing which id to delete.
+     */
+    @Test
+    void batch_deleteWithUser() throws Exception {
+        var ops = List.of(new UserBatchOp(UserBatchOp.Type.DELETE, Long.MAX_VALUE, savedUser));
+        // Setup request
+        var req = post("/api/users/batch")
+                    .content(asJsonString(ops))
+                    .contentType("application/json");
+        // Perform test
+        sqlBudget.start();
+        mvc.perform(req)
+            .andExpect(content().string(containsString("index 0 is a delete")))
             .andExpect(status().isBadRequest());
+        sqlBudget.assertStatements(0);
+        // Test data in db
+        assertTrue(userRepo.findById(savedUser.getId()).isPresent());
     }
 
 
@@ -0,0 +1,159 @@
+/**
+ * Integration tests for the user metrics, the result tags and the Prometheus endpoint.
+ */
+
+package com.example.firstmvn.e2e;
+
+import com.example.firstmvn.Main;
+import com.example.firstmvn.entities.User;
+import com.example.firstmvn.repositories.UserRepo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static com.example.firstmvn.other.MetricsConfig.CONFLICT;
+import static com.example.firstmvn.other.MetricsConfig.DAO_TIMER;
+import static com.example.firstmvn.other.MetricsConfig.NOT_FOUND;
+import static com.example.firstmvn.other.MetricsConfig.OK;
+import static com.example.firstmvn.other.MetricsConfig.RESULT_TAG;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.allOf;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+@SpringBootTest(classes = Main.class)
+@AutoConfigureMockMvc
+@AutoConfigureMetrics
+public class UserMetricsTests {
+
+    private static final String HTTP_TIMER = "http.server.requests";
+
+    private final UserRepo userRepo;
+    private final MockMvc mvc;
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper;
+
+    private User savedUser;
+
+
+    /**
+     * Constructor()
+     *
+     * @param userRepo
+     * @param mvc
+     * @param meterRegistry
+     * @param objectMapper
+     */
+    @Autowired
+    public UserMetricsTests(UserRepo userRepo, MockMvc mvc, MeterRegistry meterRegistry, ObjectMapper objectMapper) {
+        this.userRepo = userRepo;
+        this.mvc = mvc;
+        this.meterRegistry = meterRegistry;
+        this.objectMapper = objectMapper;
+    }
+
+
+    /**
+     * Setup dummy data.
+     */
+    @BeforeEach
+    void setUp() {
+        savedUser = userRepo.save(new User("sean@example.com", "sean maxwell"));
+    }
+
+
+    /**
+     * Clean up dummy data.
+     */
+    @AfterEach
+    void cleanUp() {
+        userRepo.deleteAll();
+    }
+
+
+    /**
+     * Test the DAO and controller timers are tagged with the result.
+     */
+    @Test
+    void resultTags() throws Exception {
+        long getOk = daoCount("getOne", OK);
+        long getNotFound = daoCount("getOne", NOT_FOUND);
+        long addConflict = daoCount("addOne", CONFLICT);
+        long httpNotFound = httpCount("/api/users/{id}", NOT_FOUND);
+        // Found, not found, and an email that's taken
+        mvc.perform(get("/api/users/" + savedUser.getId())).andExpect(status().isOk());
+        mvc.perform(get("/api/users/" + (savedUser.getId() + 1))).andExpect(status().isNotFound());
+        var body = objectMapper.writeValueAsString(new User(savedUser.getEmail(), "someone"));
+        mvc.perform(post("/api/users").content(body).contentType("application/json"))
+            .andExpect(status().isConflict());
+        // Check counts
+        assertEquals(getOk + 1, daoCount("getOne", OK));
+        assertEquals(getNotFound + 1, daoCount("getOne", NOT_FOUND));
+        assertEquals(addConflict + 1, daoCount("addOne", CONFLICT));
+        assertEquals(httpNotFound + 1, httpCount("/api/users/{id}", NOT_FOUND));
+    }
+
+
+    /**
+     * Test the Prometheus endpoint has the user, Hikari and Hibernate metrics.
+     */
+    @Test
+    void prometheus() throws Exception {
+        mvc.perform(get("/api/users/" + savedUser.getId())).andExpect(status().isOk());
+        mvc.perform(get("/actuator/prometheus"))
+            .andExpect(status().isOk())
+            .andExpect(content().string(allOf(
+                containsString("users_dao_seconds_bucket{"),
+                containsString("http_server_requests_seconds_bucket{"),
+                containsString("hikaricp_connections_pending"),
+                containsString("hikaricp_connections_acquire_seconds"),
+                containsString("hibernate_statements_total")
+            )));
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * Calls of one UserDao method with the result.
+     *
+     * @param method
+     * @param result
+     * @return
+     */
+    private long daoCount(String method, String result) {
+        Timer timer = meterRegistry.find(DAO_TIMER).tags("method", method, RESULT_TAG, result).timer();
+        return (timer == null) ? 0 : timer.count();
+    }
+
+
+    /**
+     * Requests to one route with the result.
+     *
+     * @param uri
+     * @param result
+     * @return
+     */
+    private long httpCount(String uri, String result) {
+        Timer timer = meterRegistry.find(HTTP_TIMER).tags("uri", uri, RESULT_TAG, result).timer();
+        return (timer == null) ? 0 : timer.count();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Unit-tests for the per-endpoint concurrency limits.
+ */
+
+package com.example.firstmvn.other;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.example.firstmvn.other.ConcurrencyLimiter.QUEUE_FULL;
+import static com.example.firstmvn.other.ConcurrencyLimiter.REJECTED_COUNTER;
+import static com.example.firstmvn.other.ConcurrencyLimiter.TIMEOUT;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class ConcurrencyLimiterTest {
+
+    private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private MeterRegistry meterRegistry;
+
+
+    /**
+     * Setup the registry.
+     */
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+
+    /**
+     * Test requests over the limit are rejected right away when there's no queue.
+     */
+    @Test
+    public void acquire_queueFull() throws Exception {
+        var limiter = newLimiter(2, 0, Duration.ofSeconds(1), false);
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(1, rejected(QUEUE_FULL));
+        assertEquals(2, limiter.getInFlight());
+        limiter.release(FAST_NANOS);
+        assertTrue(limiter.acquire());
+    }
+
+
+    /**
+     * Test a queued request is rejected once it has waited the queue timeout.
+     */
+    @Test
+    public void acquire_timeout() throws Exception {
+        var limiter = newLimiter(1, 1, Duration.ofMillis(50), false);
+        assertTrue(limiter.acquire());
+        long start = System.nanoTime();
+        assertFalse(limiter.acquire());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, rejected(TIMEOUT));
+        assertEquals(0, limiter.getQueued());
+    }
+
+
+    /**
+     * Test a queued request gets the slot a finished one gives back.
+     */
+    @Test
+    public void acquire_queued() throws Exception {
+        var limiter = newLimiter(1, 1, Duration.ofSeconds(5), false);
+        assertTrue(limiter.acquire());
+        CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        });
+        while (limiter.getQueued() == 0) {
+            Thread.sleep(1);
+        }
+        limiter.release(FAST_NANOS);
+        assertTrue(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+
+    /**
+     * Test an adaptive limit shrinks when latency goes up and grows back when it recovers and
+     * the limit is being hit.
+     */
+    @Test
+    public void adaptive() throws Exception {
+        var limiter = newLimiter(10, 100, Duration.ofSeconds(1), true);
+        // Best latency
+        runWindow(limiter, FAST_NANOS);
+        assertEquals(10, limiter.getLimit());
+        // Slow
+        runWindow(limiter, SLOW_NANOS);
+        assertEquals(9, limiter.getLimit());
+        runWindow(limiter, SLOW_NANOS);
+        runWindow(limiter, SLOW_NANOS);
+        assertTrue(limiter.getLimit() < 9);
+        // Recovered
+        int low = limiter.getLimit();
+        runWindow(limiter, FAST_NANOS);
+        assertEquals(low + 1, limiter.getLimit());
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * A limiter that doesn't go below 1 and backs off at twice the best latency.
+     *
+     * @param limit
+     * @param queueSize
+     * @param queueTimeout
+     * @param adaptive
+     * @return
+     */
+    private ConcurrencyLimiter newLimiter(int limit, int queueSize, Duration queueTimeout, boolean adaptive) {
+        return new ConcurrencyLimiter("getOne", limit, queueSize, queueTimeout, adaptive, 1, 2.0, meterRegistry);
+    }
+
+
+    /**
+     * Run one window of 10 requests (the limit is 10 at most here) that fills the limit, each
+     * taking the latency.
+     *
+     * @param limiter
+     * @param latencyNanos
+     */
+    private static void runWindow(ConcurrencyLimiter limiter, long latencyNanos) throws InterruptedException {
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.release(latencyNanos);
+            if (i < 10 - limit) {
+                limiter.acquire();
+            }
+        }
+    }
+
+
+    /**
+     * Requests rejected for a reason.
+     *
+     * @param reason
+     * @return
+     */
+    private long rejected(String reason) {
+        return (long) meterRegistry.counter(REJECTED_COUNTER, "endpoint", "getOne", "reason", reason).count();
+    }
+}
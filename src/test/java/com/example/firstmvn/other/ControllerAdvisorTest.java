@@ -0,0 +1,59 @@
+/**
+ * Unit-tests for the errors that can't be reproduced through MockMvc: a client hanging up and a
+ * failure after the response was committed.
+ */
+
+package com.example.firstmvn.other;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.apache.catalina.connector.ClientAbortException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+
+public class ControllerAdvisorTest {
+
+    private ControllerAdvisor advisor;
+    private MockHttpServletResponse response;
+
+
+    /**
+     * Setup the advisor.
+     */
+    @BeforeEach
+    public void setUp() {
+        advisor = new ControllerAdvisor(10);
+        response = new MockHttpServletResponse();
+    }
+
+
+    /**
+     * Test a client abort, as the export throws it, gets no response body.
+     */
+    @Test
+    public void handleIoError_clientAbort() {
+        var ex = new UncheckedIOException(new ClientAbortException(new IOException("Broken pipe")));
+        response.setCommitted(true);
+        assertNull(advisor.handleIoError(ex, response));
+    }
+
+
+    /**
+     * Test other I/O errors are still a 500, or only logged once the response is committed.
+     */
+    @Test
+    public void handleIoError_unexpected() {
+        var ex = new UncheckedIOException(new IOException("Disk full"));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, advisor.handleIoError(ex, response).getStatusCode());
+        response.setCommitted(true);
+        assertNull(advisor.handleIoError(ex, response));
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Unit-tests for routing connections between the primary and the replicas.
+ */
+
+package com.example.firstmvn.other;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import static com.example.firstmvn.other.ReplicaRouter.PRIMARY;
+import static com.example.firstmvn.other.ReplicaRouter.ROUTE_COUNTER;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class ReplicaRouterTest {
+
+    private DataSource primary;
+    private DataSource replica1;
+    private DataSource replica2;
+    private MeterRegistry meterRegistry;
+
+
+    /**
+     * Setup a primary and two replicas that are caught up.
+     */
+    @BeforeEach
+    public void setUp() throws SQLException {
+        primary = mockDataSource(0);
+        replica1 = mockDataSource(0);
+        replica2 = mockDataSource(0);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+
+    /**
+     * Clear the transaction and request.
+     */
+    @AfterEach
+    public void cleanUp() {
+        endTransaction(false);
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+
+    /**
+     * Test read-only transactions alternate between the replicas and everything else goes to the
+     * primary.
+     */
+    @Test
+    public void route_readsToReplicas() throws SQLException {
+        var router = newRouter(Duration.ZERO);
+        router.checkReplicas();
+        for (int i = 0; i < 4; i++) {
+            read(router);
+        }
+        router.getDataSource().getConnection();
+        write(router);
+        assertEquals(2, count("replica-1"));
+        assertEquals(2, count("replica-2"));
+        assertEquals(2, count(PRIMARY));
+    }
+
+
+    /**
+     * Test reads go to the primary until the replicas have been checked.
+     */
+    @Test
+    public void route_notChecked() throws SQLException {
+        var router = newRouter(Duration.ZERO);
+        read(router);
+        assertEquals(1, count(PRIMARY));
+    }
+
+
+    /**
+     * Test reads stay on the primary for the window after a write commits.
+     */
+    @Test
+    public void route_readYourWritesWindow() throws Exception {
+        var router = newRouter(Duration.ofMillis(200));
+        router.checkReplicas();
+        write(router);
+        read(router);
+        assertEquals(2, count(PRIMARY));
+        Thread.sleep(250);
+        read(router);
+        assertEquals(1, count("replica-1"));
+    }
+
+
+    /**
+     * Test reads stay on the primary for the rest of a request that wrote, even with no window.
+     */
+    @Test
+    public void route_sameRequest() throws SQLException {
+        var router = newRouter(Duration.ZERO);
+        router.checkReplicas();
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        write(router);
+        read(router);
+        assertEquals(2, count(PRIMARY));
+        // The next request can use a replica
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        read(router);
+        assertEquals(1, count("replica-1"));
+    }
+
+
+    /**
+     * Test a write that rolls back doesn't keep reads on the primary.
+     */
+    @Test
+    public void route_rolledBack() throws SQLException {
+        var router = newRouter(Duration.ofMinutes(1));
+        router.checkReplicas();
+        beginTransaction(false);
+        router.getDataSource().getConnection();
+        endTransaction(false);
+        read(router);
+        assertEquals(1, count("replica-1"));
+    }
+
+
+    /**
+     * Test a replica that fails is skipped until the health check finds it up again.
+     */
+    @Test
+    public void route_replicaDown() throws SQLException {
+        var router = newRouter(Duration.ZERO);
+        router.checkReplicas();
+        when(replica1.getConnection()).thenThrow(new SQLException("Connection refused"));
+        read(router);
+        read(router);
+        read(router);
+        assertEquals(1, count(PRIMARY));
+        assertEquals(2, count("replica-2"));
+        // Back up
+        var con = mockConnection(0);
+        doReturn(con).when(replica1).getConnection();
+        router.checkReplicas();
+        read(router);
+        read(router);
+        assertEquals(1, count("replica-1"));
+    }
+
+
+    /**
+     * Test a replica lagging more than max-lag is skipped.
+     */
+    @Test
+    public void route_replicaLagging() throws SQLException {
+        replica1 = mockDataSource(10);
+        var router = newRouter(Duration.ZERO);
+        router.checkReplicas();
+        read(router);
+        read(router);
+        assertEquals(0, count("replica-1"));
+        assertEquals(2, count("replica-2"));
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * A router over the mocks with a max lag of 5s.
+     *
+     * @param window
+     * @return
+     */
+    private ReplicaRouter newRouter(Duration window) {
+        return new ReplicaRouter(primary, List.of(replica1, replica2), List.of("replica-1", "replica-2"),
+            window, Duration.ofSeconds(5), meterRegistry);
+    }
+
+
+    /**
+     * Get a connection in a read-only transaction.
+     *
+     * @param router
+     */
+    private static void read(ReplicaRouter router) throws SQLException {
+        beginTransaction(true);
+        router.getDataSource().getConnection();
+        endTransaction(true);
+    }
+
+
+    /**
+     * Get a connection in a read-write transaction that commits.
+     *
+     * @param router
+     */
+    private static void write(ReplicaRouter router) throws SQLException {
+        beginTransaction(false);
+        router.getDataSource().getConnection();
+        endTransaction(true);
+    }
+
+
+    /**
+     * Set the transaction state the way the transaction manager does before the first statement.
+     *
+     * @param readOnly
+     */
+    private static void beginTransaction(boolean readOnly) {
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+    }
+
+
+    /**
+     * End the transaction, running the after commit callbacks if it committed.
+     *
+     * @param committed
+     */
+    private static void endTransaction(boolean committed) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        List<TransactionSynchronization> syncs = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clear();
+        if (committed) {
+            syncs.forEach(TransactionSynchronization::afterCommit);
+        }
+    }
+
+
+    /**
+     * Connections handed out from one pool.
+     *
+     * @param pool
+     * @return
+     */
+    private long count(String pool) {
+        return (long) meterRegistry.counter(ROUTE_COUNTER, "pool", pool).count();
+    }
+
+
+    /**
+     * A DataSource whose connections are valid and report the lag.
+     *
+     * @param lagSeconds
+     * @return
+     */
+    private static DataSource mockDataSource(double lagSeconds) throws SQLException {
+        var dataSource = mock(DataSource.class);
+        var con = mockConnection(lagSeconds);
+        when(dataSource.getConnection()).thenReturn(con);
+        return dataSource;
+    }
+
+
+    /**
+     * A valid connection that reports the lag.
+     *
+     * @param lagSeconds
+     * @return
+     */
+    private static Connection mockConnection(double lagSeconds) throws SQLException {
+        var con = mock(Connection.class);
+        var stmt = mock(Statement.class);
+        var rs = mock(ResultSet.class);
+        when(con.isValid(anyInt())).thenReturn(true);
+        when(con.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(anyString())).thenReturn(rs);
+        when(rs.next()).thenReturn(true);
+        when(rs.getDouble(1)).thenReturn(lagSeconds);
+        return con;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Unit-tests for the SQL log lines.
+ */
+
+package com.example.firstmvn.other;
+
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.proxy.ParameterSetOperation;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+public class SqlLoggerTest {
+
+    private static final String PWD_HASH = "$2a$10$secret";
+
+    private SqlLogger sqlLogger;
+
+
+    /**
+     * Setup the logger, sampling nothing so the writer stays idle.
+     */
+    @BeforeEach
+    public void setUp() {
+        sqlLogger = new SqlLogger(0, Duration.ofSeconds(1), new String[] {"pwdHash"}, 10);
+    }
+
+
+    /**
+     * Stop the writer.
+     */
+    @AfterEach
+    public void cleanUp() {
+        sqlLogger.destroy();
+        MDC.clear();
+    }
+
+
+    /**
+     * Test the password hash is masked in "column = ?".
+     */
+    @Test
+    public void describe_update() throws Exception {
+        var sql = "update main.users set email=?, name=?, pwdHash=? where id=?";
+        var line = sqlLogger.describe(execInfo(3, false), query(sql, "a@b.com", "ab", PWD_HASH, 7L));
+        assertEquals("3ms [-] " + sql + " [a@b.com, ab, ***, 7]", line);
+    }
+
+
+    /**
+     * Test the password hash is masked in an insert's values, with the request id.
+     */
+    @Test
+    public void describe_insert() throws Exception {
+        MDC.put(RequestIdFilter.MDC_KEY, "req-1");
+        var sql = "INSERT INTO main.users (email, name, pwdHash, created) SELECT ?, ?, ?, CURRENT_DATE " +
+            "WHERE NOT EXISTS (SELECT 1 FROM main.users WHERE id = ?) ON CONFLICT DO NOTHING RETURNING id";
+        var line = sqlLogger.describe(execInfo(12, false), query(sql, "a@b.com", "ab", PWD_HASH, -1L));
+        assertEquals("12ms [req-1] " + sql + " [a@b.com, ab, ***, -1]", line);
+    }
+
+
+    /**
+     * Test the password hashes are masked in a multi-row insert from arrays (UserInsertCoalescer).
+     */
+    @Test
+    public void describe_unnestInsert() throws Exception {
+        var sql = "INSERT INTO main.users (email, name, pwdHash, created) " +
+            "SELECT unnest(?::varchar[]), unnest(?::varchar[]), unnest(?::varchar[]), CURRENT_DATE " +
+            "ON CONFLICT DO NOTHING RETURNING id, email";
+        var line = sqlLogger.describe(execInfo(4, false),
+            query(sql, "{a@b.com,c@d.com}", "{ab,cd}", "{" + PWD_HASH + "," + PWD_HASH + "}"));
+        assertEquals("4ms [-] " + sql + " [{a@b.com,c@d.com}, {ab,cd}, ***]", line);
+    }
+
+
+    /**
+     * Test a batch is marked and shows its first row.
+     */
+    @Test
+    public void describe_batch() throws Exception {
+        var sql = "INSERT INTO main.users (email, name, pwdHash, created) VALUES (?, ?, ?, CURRENT_DATE)";
+        var line = sqlLogger.describe(execInfo(5, true), query(sql, "a@b.com", "ab", PWD_HASH));
+        assertEquals("5ms [-] " + sql + " [batch of 1] [a@b.com, ab, ***]", line);
+    }
+
+
+    /*****************************************************************************************
+     *                                       Helpers
+     ****************************************************************************************/
+
+    /**
+     * A successful execution.
+     *
+     * @param elapsedMs
+     * @param batch
+     * @return
+     */
+    private static ExecutionInfo execInfo(long elapsedMs, boolean batch) {
+        var execInfo = new ExecutionInfo();
+        execInfo.setElapsedTime(elapsedMs);
+        execInfo.setSuccess(true);
+        execInfo.setBatch(batch);
+        execInfo.setBatchSize(batch ? 1 : 0);
+        return execInfo;
+    }
+
+
+    /**
+     * A statement with its parameters set in order.
+     *
+     * @param sql
+     * @param values
+     * @return
+     */
+    private static List<QueryInfo> query(String sql, Object... values) throws Exception {
+        Method setObject = PreparedStatement.class.getMethod("setObject", int.class, Object.class);
+        var params = new ArrayList<ParameterSetOperation>();
+        for (int i = 0; i < values.length; i++) {
+            params.add(new ParameterSetOperation(setObject, new Object[] {i + 1, values[i]}));
+        }
+        var queryInfo = new QueryInfo(sql);
+        queryInfo.getParametersList().add(params);
+        return List.of(queryInfo);
+    }
+}
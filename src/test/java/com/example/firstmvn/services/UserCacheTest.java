@@ -0,0 +1,212 @@
+/**
+ * Unit-tests for the user cache.
+ */
+
+package com.example.firstmvn.services;
+
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.exceptions.NotFoundException;
+import static com.example.firstmvn.daos.UserDao.getIdNotFoundMsg;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class UserCacheTest {
+
+    private static final Duration TTL = Duration.ofMinutes(1);
+
+    private SimpleMeterRegistry registry;
+    private UserDto dummyUser;
+    private AtomicInteger loads;
+    private Function<Long, UserDto> loader;
+    private Function<Long, UserDto> notFoundLoader;
+
+
+    /**
+     * Setup dummy-data
+     */
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        dummyUser = new UserDto(5L, "sean@example.com", "sean", null, 0L);
+        loads = new AtomicInteger();
+        loader = id -> {
+            loads.incrementAndGet();
+            return dummyUser;
+        };
+        notFoundLoader = id -> {
+            loads.incrementAndGet();
+            throw new NotFoundException(getIdNotFoundMsg(id));
+        };
+    }
+
+
+    /**
+     * Test get() only loads once and counts hits and misses.
+     */
+    @Test
+    void get() {
+        var cache = new UserCache(true, 100, TTL, Duration.ZERO, registry);
+        assertEquals(dummyUser, cache.get(5L, loader));
+        assertEquals(dummyUser, cache.get(5L, loader));
+        assertEquals(1, loads.get());
+        assertEquals(1, getCount("hit"));
+        assertEquals(1, getCount("miss"));
+    }
+
+
+    /**
+     * Test invalidate() makes the next get() load again.
+     */
+    @Test
+    void invalidate() {
+        var cache = new UserCache(true, 100, TTL, Duration.ZERO, registry);
+        cache.get(5L, loader);
+        cache.invalidate(5L);
+        cache.get(5L, loader);
+        assertEquals(2, loads.get());
+    }
+
+
+    /**
+     * Test not-found ids aren't cached when the not-found ttl is 0.
+     */
+    @Test
+    void get_notFound() {
+        var cache = new UserCache(true, 100, TTL, Duration.ZERO, registry);
+        var ex = assertThrows(NotFoundException.class, () -> cache.get(5L, notFoundLoader));
+        assertEquals(getIdNotFoundMsg(5L), ex.getMessage());
+        assertThrows(NotFoundException.class, () -> cache.get(5L, notFoundLoader));
+        assertEquals(2, loads.get());
+    }
+
+
+    /**
+     * Test not-found ids are cached until invalidated when there's a not-found ttl.
+     */
+    @Test
+    void get_notFoundCached() {
+        var cache = new UserCache(true, 100, TTL, TTL, registry);
+        var ex = assertThrows(NotFoundException.class, () -> cache.get(5L, notFoundLoader));
+        assertEquals(getIdNotFoundMsg(5L), ex.getMessage());
+        assertThrows(NotFoundException.class, () -> cache.get(5L, notFoundLoader));
+        assertEquals(1, loads.get());
+        // A new user with this id shows up
+        cache.invalidate(5L);
+        assertEquals(dummyUser, cache.get(5L, loader));
+    }
+
+
+    /**
+     * Test other errors from the loader aren't cached as not-found.
+     */
+    @Test
+    void get_errorNotCached() {
+        var cache = new UserCache(true, 100, TTL, TTL, registry);
+        Function<Long, UserDto> failingLoader = id -> {
+            loads.incrementAndGet();
+            throw new IllegalStateException("db down");
+        };
+        assertThrows(IllegalStateException.class, () -> cache.get(5L, failingLoader));
+        assertEquals(dummyUser, cache.get(5L, loader));
+        assertEquals(2, loads.get());
+    }
+
+
+    /**
+     * Test a load doesn't hold Caffeine's lock on the id: invalidating it doesn't wait for the
+     * query, and what the load read isn't cached.
+     */
+    @Test
+    void get_loadsOutsideLock() throws Exception {
+        var cache = new UserCache(true, 100, TTL, Duration.ZERO, registry);
+        var loading = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Function<Long, UserDto> slowLoader = id -> {
+            loading.countDown();
+            await(release);
+            return loader.apply(id);
+        };
+        var result = CompletableFuture.supplyAsync(() -> cache.get(5L, slowLoader));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        CompletableFuture.runAsync(() -> cache.invalidate(5L)).get(1, TimeUnit.SECONDS);
+        release.countDown();
+        assertEquals(dummyUser, result.get(5, TimeUnit.SECONDS));
+        cache.get(5L, loader);
+        assertEquals(2, loads.get());
+    }
+
+
+    /**
+     * Test concurrent misses on the same id share one load.
+     */
+    @Test
+    void get_concurrentMisses() throws Exception {
+        var cache = new UserCache(true, 100, TTL, Duration.ZERO, registry);
+        var loading = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Function<Long, UserDto> slowLoader = id -> {
+            loading.countDown();
+            await(release);
+            return loader.apply(id);
+        };
+        var first = CompletableFuture.supplyAsync(() -> cache.get(5L, slowLoader));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        var second = CompletableFuture.supplyAsync(() -> cache.get(5L, slowLoader));
+        release.countDown();
+        assertEquals(dummyUser, first.get(5, TimeUnit.SECONDS));
+        assertEquals(dummyUser, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+    }
+
+
+    /**
+     * Test a disabled cache always calls the loader.
+     */
+    @Test
+    void get_disabled() {
+        var cache = new UserCache(false, 100, TTL, TTL, registry);
+        cache.get(5L, loader);
+        cache.get(5L, loader);
+        assertEquals(2, loads.get());
+    }
+
+
+    /**
+     * Wait for a latch in a loader.
+     *
+     * @param latch
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Get the "cache.gets" count for hits or misses.
+     * 
+     * @param result
+     * @return
+     */
+    private double getCount(String result) {
+        return registry.get("cache.gets").tag("result", result).functionCounter().count();
+    }
+}
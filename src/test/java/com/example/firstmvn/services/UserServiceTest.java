@@ -7,24 +7,36 @@
 
 package com.example.firstmvn.services;
 
+import com.example.firstmvn.daos.UserBatchDao;
 import com.example.firstmvn.daos.UserDao;
+import com.example.firstmvn.daos.UserInsertCoalescer;
+import com.example.firstmvn.dtos.UserBatchOp;
+import com.example.firstmvn.dtos.UserBatchResult;
+import com.example.firstmvn.dtos.UserDto;
+import com.example.firstmvn.dtos.UserPage;
 import com.example.firstmvn.entities.User;
+import com.example.firstmvn.exceptions.ConflictException;
+import com.example.firstmvn.exceptions.NotFoundException;
+import com.example.firstmvn.exceptions.PreconditionFailedException;
 import static com.example.firstmvn.daos.UserDao.getIdNotFoundMsg;
 import static com.example.firstmvn.daos.UserDao.getAlreadyPersistsMsg;
 import static com.example.firstmvn.daos.UserDao.getEmailAlreadyTakenMsg;
+import static com.example.firstmvn.daos.UserDao.getVersionChangedMsg;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.persistence.EntityExistsException;
-import javax.persistence.EntityNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -39,7 +51,8 @@ import static org.mockito.Mockito.when;
 public class UserServiceTest {
 
     private User dummyUser;
-    private List<User> dummyUsers;
+    private UserDto dummyDto;
+    private List<UserDto> dummyUsers;
     
     @InjectMocks
     private UserService userService;
@@ -47,6 +60,17 @@ public class UserServiceTest {
     @Mock
     private UserDao userDao;
 
+    @Mock
+    private UserBatchDao userBatchDao;
+
+    // Coalescing is off, getIfAvailable() returns null
+    @Mock
+    private ObjectProvider<UserInsertCoalescer> insertCoalescer;
+
+    @Spy
+    private UserCache userCache = new UserCache(false, 0, Duration.ZERO, Duration.ZERO,
+        new SimpleMeterRegistry());
+
 
     /**
      * Setup dummy-data
@@ -54,10 +78,11 @@ public class UserServiceTest {
     @BeforeEach
     public void setUp() {
         dummyUser = new User(5L, "sean");
-        dummyUsers = new ArrayList<User>();
-        dummyUsers.add(new User("Sean maxwell"));
-        dummyUsers.add(new User("Arnold Schwarzenegger"));
-        dummyUsers.add(new User("Sylvestor Stalone"));
+        dummyDto = new UserDto(5L, "", "sean", null, 0L);
+        dummyUsers = new ArrayList<UserDto>();
+        dummyUsers.add(new UserDto(1L, "", "Sean maxwell", null, 0L));
+        dummyUsers.add(new UserDto(2L, "", "Arnold Schwarzenegger", null, 0L));
+        dummyUsers.add(new UserDto(3L, "", "Sylvestor Stalone", null, 0L));
     }
     
 
@@ -68,10 +93,26 @@ public class UserServiceTest {
      */
     @Test
     void getAll() throws Exception {
+        var page = new UserPage(dummyUsers, null);
         // Mock db call
-        when(userDao.getAll()).thenReturn(dummyUsers);
-        var resp = userService.getAll();
-        assertEquals(dummyUsers, resp);
+        when(userDao.getPage(20, null)).thenReturn(page);
+        var resp = userService.getAll(20, null);
+        assertEquals(page, resp);
+    }
+
+
+    /**
+     * Test search() passes the page through.
+     * 
+     * @throws Exception
+     */
+    @Test
+    void search() throws Exception {
+        var page = new UserPage(dummyUsers, 20L);
+        // Mock db call
+        when(userDao.search("sea", 20, 0)).thenReturn(page);
+        var resp = userService.search("sea", 20, 0);
+        assertEquals(page, resp);
     }
 
 
@@ -82,10 +123,10 @@ public class UserServiceTest {
      */
     @Test
     void getOne() throws Exception {
-        Long id = dummyUser.getId();
-        when(userDao.getOne(id)).thenReturn(dummyUser);
+        Long id = dummyDto.getId();
+        when(userDao.getOne(id)).thenReturn(dummyDto);
         var resp = userService.getOne(id);
-        assertEquals(dummyUser, resp);
+        assertEquals(dummyDto, resp);
     }
 
 
@@ -99,10 +140,10 @@ public class UserServiceTest {
         Long id = dummyUser.getId();
         // Setup exception
         var errMsg = getIdNotFoundMsg(id);
-        var exception = new EntityNotFoundException(errMsg);
+        var exception = new NotFoundException(errMsg);
         doThrow(exception).when(userDao).getOne(id);
         // Do test
-        var ex = assertThrows(EntityNotFoundException.class, () -> userService.getOne(id));
+        var ex = assertThrows(NotFoundException.class, () -> userService.getOne(id));
         assertEquals(ex.getMessage(), errMsg);
     }
 
@@ -130,10 +171,10 @@ public class UserServiceTest {
         var user = dummyUser;
         // Setup exception
         var errMsg = getAlreadyPersistsMsg(user.getId(), user.getEmail());
-        var exception = new EntityExistsException(errMsg);
+        var exception = new ConflictException(errMsg);
         doThrow(exception).when(userDao).addOne(user);
         // Do test
-        var ex = assertThrows(EntityExistsException.class, () -> userService.addOne(user));
+        var ex = assertThrows(ConflictException.class, () -> userService.addOne(user));
         assertEquals(ex.getMessage(), errMsg);
     }
 
@@ -145,9 +186,10 @@ public class UserServiceTest {
      */
     @Test
     void updateOne() throws Exception {
-        doNothing().when(userDao).updateOne(dummyUser);
-        userService.updateOne(dummyUser);
-        verify(userDao, times(1)).updateOne(dummyUser);
+        doNothing().when(userDao).updateOne(dummyUser, null);
+        userService.updateOne(dummyUser, null);
+        verify(userDao, times(1)).updateOne(dummyUser, null);
+        verify(userCache, times(1)).invalidate(dummyUser.getId());
     }
 
 
@@ -160,11 +202,11 @@ public class UserServiceTest {
     void updateOne_idNotFound() throws Exception {
         // Setup exception
         var errMsg = getIdNotFoundMsg(dummyUser.getId());
-        var exception = new EntityNotFoundException(errMsg);
-        doThrow(exception).when(userDao).updateOne(dummyUser);
+        var exception = new NotFoundException(errMsg);
+        doThrow(exception).when(userDao).updateOne(dummyUser, null);
         // Do test
-        var ex = assertThrows(EntityNotFoundException.class, () -> 
-            userService.updateOne(dummyUser));
+        var ex = assertThrows(NotFoundException.class, () -> 
+            userService.updateOne(dummyUser, null));
         assertEquals(ex.getMessage(), errMsg);
     }
 
@@ -178,12 +220,31 @@ public class UserServiceTest {
     void updateOne_emailTaken() throws Exception {
         // Setup exception
         var errMsg = getEmailAlreadyTakenMsg(dummyUser.getEmail());
-        var exception = new RuntimeException(errMsg);
-        doThrow(exception).when(userDao).updateOne(dummyUser);
+        var exception = new ConflictException(errMsg);
+        doThrow(exception).when(userDao).updateOne(dummyUser, null);
+        // Do test
+        var ex = assertThrows(ConflictException.class, () -> 
+            userService.updateOne(dummyUser, null));
+        assertEquals(ex.getMessage(), errMsg);
+    }
+
+
+    /**
+     * Test updateOne() version changed since the client read it.
+     * 
+     * @throws Exception
+     */
+    @Test
+    void updateOne_versionChanged() throws Exception {
+        // Setup exception
+        var errMsg = getVersionChangedMsg(dummyUser.getId(), 3L);
+        var exception = new PreconditionFailedException(errMsg);
+        doThrow(exception).when(userDao).updateOne(dummyUser, 3L);
         // Do test
-        var ex = assertThrows(RuntimeException.class, () -> 
-            userService.updateOne(dummyUser));
+        var ex = assertThrows(PreconditionFailedException.class, () -> 
+            userService.updateOne(dummyUser, 3L));
         assertEquals(ex.getMessage(), errMsg);
+        verify(userCache, times(0)).invalidate(dummyUser.getId());
     }
 
 
@@ -197,6 +258,7 @@ public class UserServiceTest {
         doNothing().when(userDao).deleteOne(dummyUser.getId());
         userService.deleteOne(dummyUser.getId());
         verify(userDao, times(1)).deleteOne(dummyUser.getId());
+        verify(userCache, times(1)).invalidate(dummyUser.getId());
     }
 
 
@@ -209,11 +271,26 @@ public class UserServiceTest {
     void deleteOne_idNotFound() throws Exception {
         // Setup exception
         var errMsg = getIdNotFoundMsg(dummyUser.getId());
-        var exception = new EntityNotFoundException(errMsg);
+        var exception = new NotFoundException(errMsg);
         doThrow(exception).when(userDao).deleteOne(dummyUser.getId());
         // Do test
-        var ex = assertThrows(EntityNotFoundException.class, () -> 
+        var ex = assertThrows(NotFoundException.class, () -> 
             userService.deleteOne(dummyUser.getId()));
         assertEquals(ex.getMessage(), errMsg);
     }
+
+
+    /**
+     * Test batch() valid.
+     * 
+     * @throws Exception
+     */
+    @Test
+    void batch() throws Exception {
+        var ops = List.of(UserBatchOp.create(dummyUser), UserBatchOp.delete(7L));
+        var results = List.of(UserBatchResult.ok(dummyUser.getId()), UserBatchResult.ok(7L));
+        when(userBatchDao.run(ops, true)).thenReturn(results);
+        var resp = userService.batch(ops, true);
+        assertEquals(results, resp);
+    }
 }